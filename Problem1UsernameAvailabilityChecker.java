@@ -1,54 +1,412 @@
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
 
 public class Problem1UsernameAvailabilityChecker {
+    static class BloomFilter {
+        private final AtomicLongArray bits;
+        private final long bitCount;
+        private final int hashFunctions;
+        private final long expectedInsertions;
+        private final LongAdder insertions = new LongAdder();
+        private final LongAdder setBits = new LongAdder();
+
+        BloomFilter(long expectedInsertions, double falsePositiveRate) {
+            if (expectedInsertions <= 0) {
+                throw new IllegalArgumentException("expectedInsertions must be positive: " + expectedInsertions);
+            }
+            if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+                throw new IllegalArgumentException("falsePositiveRate must be in (0, 1): " + falsePositiveRate);
+            }
+            long m = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            int words = (int) Math.max(1, (m + 63) >>> 6);
+            this.bits = new AtomicLongArray(words);
+            this.bitCount = (long) words << 6;
+            this.hashFunctions = Math.max(1, (int) Math.round((double) bitCount / expectedInsertions * Math.log(2)));
+            this.expectedInsertions = expectedInsertions;
+        }
+
+        void put(String key) {
+            long h = hash64(key);
+            int h1 = (int) h;
+            int h2 = (int) (h >>> 32);
+            for (int i = 1; i <= hashFunctions; i++) {
+                long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitCount;
+                if (setBit(bit)) setBits.increment();
+            }
+            insertions.increment();
+        }
+
+        boolean mightContain(String key) {
+            long h = hash64(key);
+            int h1 = (int) h;
+            int h2 = (int) (h >>> 32);
+            for (int i = 1; i <= hashFunctions; i++) {
+                long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitCount;
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) return false;
+            }
+            return true;
+        }
+
+        boolean isSaturated() {
+            return insertions.sum() > expectedInsertions;
+        }
+
+        long expectedInsertions() {
+            return expectedInsertions;
+        }
+
+        double falsePositiveRate() {
+            return Math.pow((double) setBits.sum() / bitCount, hashFunctions);
+        }
+
+        private boolean setBit(long bit) {
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            while (true) {
+                long current = bits.get(word);
+                if ((current & mask) != 0) return false;
+                if (bits.compareAndSet(word, current, current | mask)) return true;
+            }
+        }
+
+        private static long hash64(String key) {
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < key.length(); i++) {
+                h = (h ^ key.charAt(i)) * 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            return h ^ (h >>> 33);
+        }
+    }
+
+    static class HeavyHitters {
+        private static final int DEPTH = 4;
+        private static final int REFRESH_INTERVAL = 64;
+
+        private final AtomicLongArray sketch;
+        private final int widthMask;
+        private final int capacity;
+        private final ConcurrentHashMap<String, Long> top = new ConcurrentHashMap<>();
+        private volatile long admissionThreshold;
+        private final long decayIntervalNanos;
+        private final AtomicLong lastDecayNanos = new AtomicLong(System.nanoTime());
+
+        // decayIntervalNanos <= 0 keeps lifetime counts; otherwise all counts are halved once per interval.
+        HeavyHitters(int capacity, int sketchWidth, long decayIntervalNanos) {
+            int width = Integer.highestOneBit(Math.max(16, sketchWidth - 1) << 1);
+            this.sketch = new AtomicLongArray(width * DEPTH);
+            this.widthMask = width - 1;
+            this.capacity = capacity;
+            this.decayIntervalNanos = decayIntervalNanos;
+        }
+
+        long increment(String key) {
+            if (decayIntervalNanos > 0) maybeDecay();
+            long h = BloomFilter.hash64(key);
+            long count = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                count = Math.min(count, sketch.incrementAndGet(slot(h, row)));
+            }
+
+            // Tracked keys are read back from the sketch in top(); the stored value is only refreshed now and then.
+            if (count > admissionThreshold) {
+                if (!top.containsKey(key)) {
+                    admit(key, count);
+                } else if ((count & (REFRESH_INTERVAL - 1)) == 0) {
+                    top.put(key, count);
+                }
+            }
+            return count;
+        }
+
+        List<Map.Entry<String, Long>> top(int n) {
+            if (decayIntervalNanos > 0) maybeDecay();
+            List<Map.Entry<String, Long>> entries = new ArrayList<>(top.size());
+            top.forEach((k, v) -> entries.add(Map.entry(k, Math.max(v, estimate(k)))));
+            entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+            return entries.size() > n ? entries.subList(0, n) : entries;
+        }
+
+        private synchronized void admit(String key, long count) {
+            if (top.containsKey(key)) return;
+            top.put(key, count);
+            if (top.size() > capacity) {
+                top.replaceAll((k, v) -> Math.max(v, estimate(k)));
+                top.entrySet().stream().min(Map.Entry.comparingByValue()).ifPresent(e -> top.remove(e.getKey()));
+            }
+            admissionThreshold = top.size() < capacity ? 0
+                    : top.values().stream().mapToLong(Long::longValue).min().orElse(0);
+        }
+
+        private long estimate(String key) {
+            long h = BloomFilter.hash64(key);
+            long count = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                count = Math.min(count, sketch.get(slot(h, row)));
+            }
+            return count;
+        }
+
+        private int slot(long h, int row) {
+            int h1 = (int) h;
+            int h2 = (int) (h >>> 32) | 1;
+            return row * (widthMask + 1) + ((h1 + row * h2) & widthMask);
+        }
+
+        // Applies one halving per interval elapsed since the last decay, so idle periods are caught up on the next call.
+        private void maybeDecay() {
+            long now = System.nanoTime();
+            long last = lastDecayNanos.get();
+            long intervals = (now - last) / decayIntervalNanos;
+            if (intervals == 0 || !lastDecayNanos.compareAndSet(last, last + intervals * decayIntervalNanos)) return;
+            int shift = (int) Math.min(intervals, 63);
+            synchronized (this) {
+                for (int i = 0; i < sketch.length(); i++) {
+                    sketch.getAndUpdate(i, v -> v >>> shift);
+                }
+                top.replaceAll((k, v) -> v >>> shift);
+                top.values().removeIf(v -> v == 0);
+                admissionThreshold >>>= shift;
+            }
+        }
+    }
+
+    interface CandidateGenerator {
+        Iterator<String> candidates(String base, Predicate<String> isTaken);
+    }
+
+    static class NumericSuffixGenerator implements CandidateGenerator {
+        // Only bases whose first run of taken suffixes was at least this long are remembered.
+        private static final int MIN_TRACKED_RUN = 8;
+
+        private final int maxTries;
+        private final int maxTrackedBases;
+        // Lowest suffix not yet known to be taken; usernames are never released, so this only moves forward.
+        private final ConcurrentHashMap<String, Integer> denseUpTo = new ConcurrentHashMap<>();
+
+        NumericSuffixGenerator(int maxTries) {
+            this(maxTries, 4096);
+        }
+
+        NumericSuffixGenerator(int maxTries, int maxTrackedBases) {
+            this.maxTries = maxTries;
+            this.maxTrackedBases = maxTrackedBases;
+        }
+
+        @Override
+        public Iterator<String> candidates(String base, Predicate<String> isTaken) {
+            Integer tracked = denseUpTo.get(base);
+            int known = tracked == null ? 1 : tracked;
+            int start = known;
+            StringBuilder sb = new StringBuilder(base.length() + 11).append(base);
+            while (start < known + maxTries && isTaken.test(sb.append(start).toString())) {
+                sb.setLength(base.length());
+                start++;
+            }
+            if (tracked != null) {
+                if (start > known) denseUpTo.merge(base, start, Math::max);
+            } else if (start - known >= MIN_TRACKED_RUN) {
+                track(base, start);
+            }
+
+            int from = start;
+            int to = known + maxTries;
+            return new Iterator<>() {
+                private int next = from;
+
+                @Override
+                public boolean hasNext() {
+                    return next < to;
+                }
+
+                @Override
+                public String next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    sb.setLength(base.length());
+                    return sb.append(next++).toString();
+                }
+            };
+        }
+
+        private void track(String base, int start) {
+            // Cold bases cost a short rescan, so an arbitrary victim is good enough to keep the map bounded.
+            if (denseUpTo.size() >= maxTrackedBases) {
+                Iterator<String> victims = denseUpTo.keySet().iterator();
+                if (victims.hasNext()) denseUpTo.remove(victims.next());
+            }
+            denseUpTo.merge(base, start, Math::max);
+        }
+    }
+
+    static class SeparatorSwapGenerator implements CandidateGenerator {
+        private final char[][] swaps;
+
+        SeparatorSwapGenerator(char[]... swaps) {
+            this.swaps = swaps;
+        }
+
+        @Override
+        public Iterator<String> candidates(String base, Predicate<String> isTaken) {
+            List<String> out = new ArrayList<>(swaps.length);
+            for (char[] swap : swaps) {
+                if (base.indexOf(swap[0]) >= 0) out.add(base.replace(swap[0], swap[1]));
+            }
+            return out.iterator();
+        }
+    }
+
+    static class AffixGenerator implements CandidateGenerator {
+        private final List<String> suffixes;
+
+        AffixGenerator(String... suffixes) {
+            this.suffixes = List.of(suffixes);
+        }
+
+        @Override
+        public Iterator<String> candidates(String base, Predicate<String> isTaken) {
+            return suffixes.stream().map(base::concat).iterator();
+        }
+    }
+
     static class UsernameService {
+        private static final double TARGET_FALSE_POSITIVE_RATE = 0.01;
+
         private final ConcurrentHashMap<String, String> usernameToUserId = new ConcurrentHashMap<>();
-        private final ConcurrentHashMap<String, AtomicInteger> attemptFrequency = new ConcurrentHashMap<>();
+        private final HeavyHitters attemptFrequency;
+        private final AtomicBoolean rebuilding = new AtomicBoolean();
+        private final ExecutorService rebuilder = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "bloom-rebuild");
+            t.setDaemon(true);
+            return t;
+        });
+        private final LongAdder filterSkips = new LongAdder();
+        private volatile BloomFilter takenFilter;
+        private volatile BloomFilter pendingFilter;
+        private final List<CandidateGenerator> generators;
+
+        UsernameService() {
+            this(1 << 16);
+        }
+
+        UsernameService(long expectedUsernames) {
+            this(expectedUsernames, List.of(
+                    new NumericSuffixGenerator(1000),
+                    new SeparatorSwapGenerator(new char[] {'_', '.'}),
+                    new AffixGenerator("_official", "_real")));
+        }
+
+        UsernameService(long expectedUsernames, List<CandidateGenerator> generators) {
+            this(expectedUsernames, generators, new HeavyHitters(64, 1 << 14, 0));
+        }
+
+        UsernameService(long expectedUsernames, List<CandidateGenerator> generators, HeavyHitters attemptFrequency) {
+            this.takenFilter = new BloomFilter(expectedUsernames, TARGET_FALSE_POSITIVE_RATE);
+            this.generators = List.copyOf(generators);
+            this.attemptFrequency = attemptFrequency;
+        }
 
         public boolean registerUsername(String username, String userId) {
-            return usernameToUserId.putIfAbsent(normalize(username), userId) == null;
+            String normalized = normalize(username);
+            if (usernameToUserId.putIfAbsent(normalized, userId) != null) return false;
+            BloomFilter filter = takenFilter;
+            filter.put(normalized);
+
+            // A rebuild may have iterated past this key before our put landed; make sure the new filter sees it.
+            BloomFilter pending = pendingFilter;
+            if (pending != null) pending.put(normalized);
+            BloomFilter current = takenFilter;
+            if (current != filter) current.put(normalized);
+
+            if (current.isSaturated()) rebuildFilter();
+            return true;
         }
 
         public boolean checkAvailability(String username) {
             String normalized = normalize(username);
-            attemptFrequency.computeIfAbsent(normalized, k -> new AtomicInteger()).incrementAndGet();
+            attemptFrequency.increment(normalized);
+            if (!takenFilter.mightContain(normalized)) {
+                filterSkips.increment();
+                return true;
+            }
             return !usernameToUserId.containsKey(normalized);
         }
 
+        // Runs on the background thread; registrations keep landing in the old filter and in pendingFilter meanwhile.
+        public void rebuildFilter() {
+            if (!rebuilding.compareAndSet(false, true)) return;
+            rebuilder.execute(() -> {
+                try {
+                    long expected = Math.max(takenFilter.expectedInsertions(), (long) usernameToUserId.size() * 2);
+                    BloomFilter rebuilt = new BloomFilter(expected, TARGET_FALSE_POSITIVE_RATE);
+                    pendingFilter = rebuilt;
+                    for (String taken : usernameToUserId.keySet()) {
+                        rebuilt.put(taken);
+                    }
+                    takenFilter = rebuilt;
+                    pendingFilter = null;
+                } finally {
+                    rebuilding.set(false);
+                }
+            });
+        }
+
+        public String getFilterStats() {
+            BloomFilter filter = takenFilter;
+            return String.format("Bloom FPR: %.4f%%, capacity: %d, map probes skipped: %d",
+                    filter.falsePositiveRate() * 100.0, filter.expectedInsertions(), filterSkips.sum());
+        }
+
         public List<String> suggestAlternatives(String username, int limit) {
             String normalized = normalize(username);
-            List<String> suggestions = new ArrayList<>(limit);
+            Set<String> suggestions = new LinkedHashSet<>();
 
-            for (int i = 1; i <= 1000 && suggestions.size() < limit; i++) {
-                addIfAvailable(suggestions, normalized + i, limit);
+            for (CandidateGenerator generator : generators) {
+                Iterator<String> it = generator.candidates(normalized, this::isTaken);
+                while (suggestions.size() < limit && it.hasNext()) {
+                    String candidate = it.next();
+                    if (!candidate.equals(normalized) && !isTaken(candidate)) suggestions.add(candidate);
+                }
+                if (suggestions.size() >= limit) break;
             }
-            addIfAvailable(suggestions, normalized.replace('_', '.'), limit);
-            addIfAvailable(suggestions, normalized + "_official", limit);
-            addIfAvailable(suggestions, normalized + "_real", limit);
-
-            return suggestions;
+            return new ArrayList<>(suggestions);
         }
 
         public String getMostAttempted() {
-            return attemptFrequency.entrySet().stream()
-                    .max(Comparator.comparingInt(e -> e.getValue().get()))
-                    .map(e -> e.getKey() + " (" + e.getValue().get() + " attempts)")
-                    .orElse("No attempts yet");
+            List<String> top = getMostAttempted(1);
+            return top.isEmpty() ? "No attempts yet" : top.get(0);
+        }
+
+        public List<String> getMostAttempted(int n) {
+            n = Math.max(0, n);
+            List<String> out = new ArrayList<>(n);
+            for (Map.Entry<String, Long> e : attemptFrequency.top(n)) {
+                out.add(e.getKey() + " (" + e.getValue() + " attempts)");
+            }
+            return out;
         }
 
         public Map<String, String> getRegisteredUsersView() {
             return Map.copyOf(usernameToUserId);
         }
 
-        private void addIfAvailable(List<String> out, String candidate, int limit) {
-            if (out.size() < limit && !usernameToUserId.containsKey(candidate) && !out.contains(candidate)) {
-                out.add(candidate);
-            }
+        private boolean isTaken(String candidate) {
+            return takenFilter.mightContain(candidate) && usernameToUserId.containsKey(candidate);
         }
 
         private String normalize(String username) {
@@ -67,5 +425,6 @@ public class Problem1UsernameAvailabilityChecker {
 
         for (int i = 0; i < 10; i++) service.checkAvailability("admin");
         System.out.println("getMostAttempted() -> " + service.getMostAttempted());
+        System.out.println("getFilterStats() -> " + service.getFilterStats());
     }
 }
\ No newline at end of file
@@ -1,45 +1,951 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 public class Problem2FlashSaleInventoryManager {
-    record PurchaseResult(boolean success, String message) {}
+    // ticket is the waitlist ticket when the purchase was queued, -1 otherwise.
+    record PurchaseResult(boolean success, String message, long ticket) {
+        PurchaseResult(boolean success, String message) {
+            this(success, message, -1);
+        }
+    }
 
-    static class ProductState {
+    interface StockCounter {
+        // Takes one unit and returns the units left where it was taken from (the whole stock for CasStockCounter,
+        // one shard for ShardedStockCounter), or -1 if sold out.
+        int tryTake();
+
+        // Takes as many of the requested units as are left and returns how many were taken.
+        int tryTakeUpTo(int units);
+
+        void add(int units);
+
+        int available();
+    }
+
+    static class CasStockCounter implements StockCounter {
         private final AtomicInteger stock;
-        private final Queue<Long> waitingList = new ConcurrentLinkedQueue<>();
-        private final AtomicInteger waitlistCount = new AtomicInteger(0);
 
-        ProductState(int initialStock) {
+        CasStockCounter(int initialStock) {
             this.stock = new AtomicInteger(initialStock);
         }
 
-        PurchaseResult purchase(long userId) {
+        @Override
+        public int tryTake() {
             while (true) {
                 int current = stock.get();
-                if (current <= 0) {
-                    waitingList.offer(userId);
-                    int position = waitlistCount.incrementAndGet();
-                    return new PurchaseResult(false, "Added to waiting list, position #" + position);
+                if (current <= 0) return -1;
+                if (stock.compareAndSet(current, current - 1)) return current - 1;
+            }
+        }
+
+        @Override
+        public int tryTakeUpTo(int units) {
+            while (true) {
+                int current = stock.get();
+                if (current <= 0) return 0;
+                int taken = Math.min(current, units);
+                if (stock.compareAndSet(current, current - taken)) return taken;
+            }
+        }
+
+        @Override
+        public void add(int units) {
+            stock.addAndGet(units);
+        }
+
+        @Override
+        public int available() {
+            return stock.get();
+        }
+    }
+
+    static class ShardedStockCounter implements StockCounter {
+        // 32 ints = 128 bytes between shards so neighbouring counters never share a cache line.
+        private static final int STRIDE = 32;
+
+        private final AtomicIntegerArray shards;
+        private final int shardCount;
+
+        ShardedStockCounter(int initialStock, int shardCount) {
+            this.shardCount = shardCount;
+            this.shards = new AtomicIntegerArray(shardCount * STRIDE);
+            for (int i = 0; i < shardCount; i++) {
+                shards.set(i * STRIDE, initialStock / shardCount + (i < initialStock % shardCount ? 1 : 0));
+            }
+        }
+
+        @Override
+        public int tryTake() {
+            int home = homeShard();
+            // Try the home shard first, then steal from the others; a shard never goes below zero.
+            for (int i = 0; i < shardCount; i++) {
+                int slot = ((home + i) % shardCount) * STRIDE;
+                while (true) {
+                    int current = shards.get(slot);
+                    if (current <= 0) break;
+                    if (shards.compareAndSet(slot, current, current - 1)) return current - 1;
                 }
-                if (stock.compareAndSet(current, current - 1)) {
-                    return new PurchaseResult(true, "Success, " + (current - 1) + " units remaining");
+            }
+            return -1;
+        }
+
+        @Override
+        public int tryTakeUpTo(int units) {
+            int home = homeShard();
+            int taken = 0;
+            for (int i = 0; i < shardCount && taken < units; i++) {
+                int slot = ((home + i) % shardCount) * STRIDE;
+                while (true) {
+                    int current = shards.get(slot);
+                    if (current <= 0) break;
+                    int grab = Math.min(current, units - taken);
+                    if (shards.compareAndSet(slot, current, current - grab)) {
+                        taken += grab;
+                        break;
+                    }
                 }
             }
+            return taken;
+        }
+
+        @Override
+        public void add(int units) {
+            for (int i = 0; i < shardCount; i++) {
+                int share = units / shardCount + (i < units % shardCount ? 1 : 0);
+                if (share > 0) shards.addAndGet(i * STRIDE, share);
+            }
+        }
+
+        @Override
+        public int available() {
+            int total = 0;
+            for (int i = 0; i < shardCount; i++) total += shards.get(i * STRIDE);
+            return total;
+        }
+
+        private int homeShard() {
+            long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+            return (int) ((id >>> 32) % shardCount);
+        }
+    }
+
+    static class Waitlist {
+        private final int capacity;
+        private long[] ring = new long[16];
+        // Monotonic sequence numbers; a waiter's ticket is the tail value it was enqueued at and lives in
+        // ring[ticket & (ring.length - 1)], so growing the ring never renumbers anyone.
+        private long head;
+        private long tail;
+        // Withdrawn tickets in [head, tail) are tombstoned in a bitmap parallel to the ring, with a Fenwick tree over
+        // the same slots to count the ones ahead of a ticket. A tombstone keeps its slot until the head passes it,
+        // so tombstones count against capacity and the ring never grows past it. head never points at one.
+        private long[] withdrawn = new long[1];
+        private int[] withdrawnTree = new int[17];
+        private int withdrawnCount;
+        private volatile int size;
+        private volatile int occupied;
+
+        Waitlist(int capacity) {
+            this.capacity = capacity;
+        }
+
+        boolean isFull() {
+            return occupied >= capacity;
+        }
+
+        int size() {
+            return size;
+        }
+
+        // Returns the ticket for the new waiter, or -1 if the list is at capacity.
+        synchronized long offer(long userId) {
+            if (tail - head >= capacity) return -1;
+            size++;
+            long ticket = offerAt(userId);
+            occupied = (int) (tail - head);
+            return ticket;
+        }
+
+        // Removes the waiter holding this ticket; false if it was already served or cancelled.
+        synchronized boolean cancel(long ticket) {
+            if (ticket < head || ticket >= tail || isWithdrawn(ticket)) return false;
+            markWithdrawn(ticket);
+            size--;
+            skipWithdrawn();
+            occupied = (int) (tail - head);
+            return true;
+        }
+
+        // 1-based position of the ticket in the queue, or 0 if it has already been served or cancelled.
+        // O(1) while nobody has withdrawn, O(log capacity) otherwise.
+        synchronized int positionOf(long ticket) {
+            if (ticket < head || ticket >= tail || isWithdrawn(ticket)) return 0;
+            int withdrawnAhead = withdrawnCount == 0 ? 0 : withdrawnBetween(head, ticket);
+            return (int) (ticket - head + 1 - withdrawnAhead);
+        }
+
+        synchronized long[] drain(int max) {
+            int n = Math.min(max, size);
+            long[] out = new long[n];
+            int mask = ring.length - 1;
+            for (int i = 0; i < n; head++) {
+                if (isWithdrawn(head)) clearWithdrawn(head);
+                else out[i++] = ring[(int) (head & mask)];
+            }
+            skipWithdrawn();
+            size -= n;
+            occupied = (int) (tail - head);
+            return out;
+        }
+
+        // Writes the next ticket followed by (ticket, userId) for every live waiter so tickets survive recovery.
+        synchronized void writeTo(DataOutputStream out) throws IOException {
+            out.writeLong(tail);
+            out.writeInt(size);
+            int mask = ring.length - 1;
+            for (long t = head; t < tail; t++) {
+                if (isWithdrawn(t)) continue;
+                out.writeLong(t);
+                out.writeLong(ring[(int) (t & mask)]);
+            }
+        }
+
+        synchronized void readFrom(DataInputStream in) throws IOException {
+            long next = in.readLong();
+            int waiting = in.readInt();
+            for (int i = 0; i < waiting; i++) {
+                long ticket = in.readLong();
+                long userId = in.readLong();
+                if (head == tail) head = tail = ticket;
+                while (tail < ticket) markWithdrawn(offerAt(0));
+                offerAt(userId);
+                size++;
+            }
+            if (head == tail) head = tail = next;
+            while (tail < next) markWithdrawn(offerAt(0));
+            occupied = (int) (tail - head);
+        }
+
+        private long offerAt(long userId) {
+            if (tail - head == ring.length) grow();
+            ring[(int) (tail & (ring.length - 1))] = userId;
+            return tail++;
+        }
+
+        private void skipWithdrawn() {
+            while (head < tail && withdrawnCount > 0 && isWithdrawn(head)) clearWithdrawn(head++);
+        }
+
+        private boolean isWithdrawn(long ticket) {
+            int slot = (int) (ticket & (ring.length - 1));
+            return (withdrawn[slot >>> 6] & (1L << slot)) != 0;
+        }
+
+        private void markWithdrawn(long ticket) {
+            int slot = (int) (ticket & (ring.length - 1));
+            withdrawn[slot >>> 6] |= 1L << slot;
+            addToTree(slot, 1);
+            withdrawnCount++;
+        }
+
+        private void clearWithdrawn(long ticket) {
+            int slot = (int) (ticket & (ring.length - 1));
+            withdrawn[slot >>> 6] &= ~(1L << slot);
+            addToTree(slot, -1);
+            withdrawnCount--;
+        }
+
+        private void addToTree(int slot, int delta) {
+            for (int i = slot + 1; i < withdrawnTree.length; i += i & -i) withdrawnTree[i] += delta;
+        }
+
+        // Tombstones in the first `slots` ring slots.
+        private int treePrefix(int slots) {
+            int sum = 0;
+            for (int i = slots; i > 0; i -= i & -i) sum += withdrawnTree[i];
+            return sum;
+        }
+
+        // Tombstones among tickets [from, to), a range that wraps the ring at most once.
+        private int withdrawnBetween(long from, long to) {
+            int n = ring.length;
+            int start = (int) (from & (n - 1));
+            int end = start + (int) (to - from);
+            return end <= n ? treePrefix(end) - treePrefix(start) : treePrefix(n) - treePrefix(start) + treePrefix(end - n);
+        }
+
+        private void grow() {
+            long[] bigger = new long[ring.length * 2];
+            long[] biggerWithdrawn = new long[Math.max(1, bigger.length >>> 6)];
+            int[] tree = new int[bigger.length + 1];
+            int oldMask = ring.length - 1;
+            int newMask = bigger.length - 1;
+            for (long t = head; t < tail; t++) {
+                int slot = (int) (t & newMask);
+                bigger[slot] = ring[(int) (t & oldMask)];
+                if (isWithdrawn(t)) {
+                    biggerWithdrawn[slot >>> 6] |= 1L << slot;
+                    tree[slot + 1] = 1;
+                }
+            }
+            // Linear-time Fenwick build: push each node's partial sum up to its parent.
+            for (int i = 1; i < tree.length; i++) {
+                int parent = i + (i & -i);
+                if (parent < tree.length) tree[parent] += tree[i];
+            }
+            ring = bigger;
+            withdrawn = biggerWithdrawn;
+            withdrawnTree = tree;
+        }
+    }
+
+    // Units held per buyer. A sale only appends the buyer to a pending buffer picked by thread, like
+    // ShardedStockCounter's home shard, so concurrent buyers mostly take uncontended locks on separate lines.
+    // Cancellations and snapshots fold the buffers into one open-addressing table (buyer and units interleaved in a
+    // long[], linear probing, backward-shift deletion) before looking anyone up. Everything is primitive, so
+    // millions of sales never box.
+    static class SalesLedger {
+        private static final int STRIPES = 64;
+
+        private static final class Pending {
+            long[] buyers = new long[16];
+            int count;
+        }
+
+        private final Pending[] pending = new Pending[STRIPES];
+        // Pairs of (buyer, units); units == 0 marks an empty slot. Guarded by this.
+        private long[] table = new long[32];
+        private int size;
+
+        SalesLedger() {
+            for (int i = 0; i < STRIPES; i++) pending[i] = new Pending();
+        }
+
+        void add(long userId) {
+            long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+            Pending p = pending[(int) (id >>> 58)];
+            synchronized (p) {
+                if (p.count == p.buyers.length) p.buyers = Arrays.copyOf(p.buyers, p.count * 2);
+                p.buyers[p.count++] = userId;
+            }
+        }
+
+        // Takes one unit back from userId; false if they hold none.
+        synchronized boolean release(long userId) {
+            fold();
+            int slot = find(userId);
+            if (table[slot + 1] == 0) return false;
+            if (--table[slot + 1] == 0) removeAt(slot);
+            return true;
+        }
+
+        // Callers exclude concurrent mutation (snapshots hold the write side of snapshotLock).
+        synchronized void writeTo(DataOutputStream out) throws IOException {
+            fold();
+            out.writeInt(size);
+            for (int i = 0; i < table.length; i += 2) {
+                if (table[i + 1] == 0) continue;
+                out.writeLong(table[i]);
+                out.writeInt((int) table[i + 1]);
+            }
+        }
+
+        synchronized void readFrom(DataInputStream in) throws IOException {
+            for (int n = in.readInt(); n > 0; n--) insert(in.readLong(), in.readInt());
+        }
+
+        private void fold() {
+            for (Pending p : pending) {
+                synchronized (p) {
+                    for (int i = 0; i < p.count; i++) insert(p.buyers[i], 1);
+                    p.count = 0;
+                    if (p.buyers.length > 16) p.buyers = new long[16];
+                }
+            }
+        }
+
+        private void insert(long userId, int units) {
+            int slot = find(userId);
+            if (table[slot + 1] == 0) {
+                table[slot] = userId;
+                if (++size * 4 > table.length) {
+                    table[slot + 1] = units;
+                    grow();
+                    return;
+                }
+            }
+            table[slot + 1] += units;
+        }
+
+        // Index of the pair holding userId, or of the empty pair where it would go.
+        private int find(long userId) {
+            int mask = table.length - 1;
+            int slot = home(userId, mask);
+            while (table[slot + 1] != 0 && table[slot] != userId) slot = (slot + 2) & mask;
+            return slot;
+        }
+
+        private void removeAt(int hole) {
+            int mask = table.length - 1;
+            for (int j = (hole + 2) & mask; table[j + 1] != 0; j = (j + 2) & mask) {
+                int home = home(table[j], mask);
+                // Entries whose home lies cyclically in (hole, j] can't move before the hole.
+                boolean stays = hole <= j ? hole < home && home <= j : hole < home || home <= j;
+                if (stays) continue;
+                table[hole] = table[j];
+                table[hole + 1] = table[j + 1];
+                hole = j;
+            }
+            table[hole + 1] = 0;
+            size--;
+        }
+
+        private void grow() {
+            long[] old = table;
+            table = new long[old.length * 2];
+            for (int i = 0; i < old.length; i += 2) {
+                if (old[i + 1] == 0) continue;
+                int slot = find(old[i]);
+                table[slot] = old[i];
+                table[slot + 1] = old[i + 1];
+            }
+        }
+
+        private static int home(long userId, int mask) {
+            long h = userId * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 29)) << 1 & mask;
+        }
+    }
+
+    static class ProductState {
+        static final int DEFAULT_WAITLIST_CAPACITY = 1_000_000;
+
+        final String productId;
+        final byte[] journalKey;
+        final int shards;
+        final int waitlistCapacity;
+        // Only an unsharded counter knows the exact total at the moment of a take; reading every shard per
+        // purchase would put the shared cache lines back on the hot path.
+        private final boolean exactRemaining;
+        private final StockCounter stock;
+        private final Waitlist waitlist;
+        // A cancellation can only return stock that was actually sold.
+        private final SalesLedger sales = new SalesLedger();
+        volatile InventoryJournal journal;
+
+        ProductState(String productId, int initialStock, int shards, int waitlistCapacity) {
+            this.productId = productId;
+            this.journalKey = productId.getBytes(StandardCharsets.UTF_8);
+            this.shards = shards;
+            this.waitlistCapacity = waitlistCapacity;
+            this.exactRemaining = shards <= 1;
+            this.stock = shards <= 1 ? new CasStockCounter(initialStock) : new ShardedStockCounter(initialStock, shards);
+            this.waitlist = new Waitlist(waitlistCapacity);
+        }
+
+        PurchaseResult purchase(long userId) {
+            int remaining = stock.tryTake();
+            if (remaining >= 0) {
+                recordSale(userId);
+                return success(remaining);
+            }
+            if (waitlist.isFull()) {
+                return new PurchaseResult(false, "Sold out, waiting list full");
+            }
+            int position;
+            long ticket;
+            synchronized (waitlist) {
+                // Restock hands units to waiters under this lock, so re-check before queueing behind them.
+                remaining = stock.tryTake();
+                if (remaining >= 0) {
+                    recordSale(userId);
+                    return success(remaining);
+                }
+                ticket = waitlist.offer(userId);
+                if (ticket < 0) return new PurchaseResult(false, "Sold out, waiting list full");
+                InventoryJournal j = journal;
+                if (j != null) j.append(InventoryJournal.WAITLIST, journalKey, userId);
+                position = waitlist.positionOf(ticket);
+            }
+            return new PurchaseResult(false, "Added to waiting list, position #" + position, ticket);
+        }
+
+        // Reserves stock for the whole batch with one take; users beyond the reserved units are waitlisted in order.
+        PurchaseResult[] purchaseBatch(long[] userIds) {
+            PurchaseResult[] results = new PurchaseResult[userIds.length];
+            int granted = stock.tryTakeUpTo(userIds.length);
+            if (granted > 0) {
+                // Request i in the batch took the unit that left `after + granted - 1 - i` behind it.
+                int after = exactRemaining ? stock.available() : -1;
+                for (int i = 0; i < granted; i++) {
+                    recordSale(userIds[i]);
+                    results[i] = success(exactRemaining ? after + granted - 1 - i : -1);
+                }
+            }
+            for (int i = granted; i < userIds.length; i++) {
+                results[i] = purchase(userIds[i]);
+            }
+            return results;
+        }
+
+        // Hands new units to waiters in FIFO order and returns the users whose purchases were fulfilled.
+        long[] restock(int units) {
+            if (units <= 0) throw new IllegalArgumentException("units must be positive: " + units);
+            synchronized (waitlist) {
+                long[] fulfilled = fulfill(units);
+                InventoryJournal j = journal;
+                if (j != null) j.append(InventoryJournal.RESTOCK, journalKey, units);
+                return fulfilled;
+            }
+        }
+
+        // Returns one unit bought by userId, handing it to the head of the waiting list if there is one; null if
+        // userId holds no unit of this product.
+        long[] cancelSale(long userId) {
+            synchronized (waitlist) {
+                if (!sales.release(userId)) return null;
+                long[] fulfilled = fulfill(1);
+                InventoryJournal j = journal;
+                if (j != null) j.append(InventoryJournal.REFUND, journalKey, userId);
+                return fulfilled;
+            }
+        }
+
+        boolean cancelWaiting(long ticket) {
+            synchronized (waitlist) {
+                if (!waitlist.cancel(ticket)) return false;
+                InventoryJournal j = journal;
+                if (j != null) j.append(InventoryJournal.CANCEL, journalKey, ticket);
+                return true;
+            }
+        }
+
+        private PurchaseResult success(int remaining) {
+            return new PurchaseResult(true, exactRemaining ? "Success, " + remaining + " units remaining" : "Success");
+        }
+
+        // Each TAKE record is one unit for one buyer, so replay can rebuild the sales as well as the stock.
+        private void recordSale(long userId) {
+            sales.add(userId);
+            InventoryJournal j = journal;
+            if (j != null) j.append(InventoryJournal.TAKE, journalKey, userId);
+        }
+
+        // Caller holds the waitlist monitor and journals the event; waiters served here become buyers.
+        private long[] fulfill(int units) {
+            long[] fulfilled = waitlist.drain(units);
+            for (long userId : fulfilled) sales.add(userId);
+            if (units > fulfilled.length) stock.add(units - fulfilled.length);
+            return fulfilled;
+        }
+
+        int waitlistPosition(long ticket) {
+            return waitlist.positionOf(ticket);
+        }
+
+        int waitlistSize() {
+            return waitlist.size();
         }
 
         int checkStock() {
-            return stock.get();
+            return stock.available();
+        }
+    }
+
+    // Append-only memory-mapped event log plus periodic snapshots. Events are written straight into the mapping and
+    // forced outside the append monitor, so one fsync covers every event appended since the previous one without
+    // stalling appenders. With a positive flush interval a background thread forces on that interval and callers
+    // return before their event is on disk (async durability: a crash can lose the last interval of acknowledged
+    // changes). With an interval <= 0 every mutation waits in awaitCommit() until an fsync covers its event; whoever
+    // forces first covers everyone queued behind it (group commit). Mutations hold the read side of snapshotLock
+    // across "change state + append" so a snapshot (write side) never sees a state change whose event lands in the
+    // next generation's log.
+    static class InventoryJournal implements AutoCloseable {
+        static final byte ADD = 1;
+        static final byte TAKE = 2;
+        static final byte WAITLIST = 3;
+        static final byte RESTOCK = 4;
+        static final byte CANCEL = 5;
+        static final byte REFUND = 6;
+
+        private final Path dir;
+        private final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+        private final ScheduledExecutorService background;
+        private FileChannel channel;
+        private MappedByteBuffer buffer;
+        private final Object forceLock = new Object();
+        private final boolean groupCommit;
+        private long generation;
+        private boolean dirty;
+        private int forcedUpTo;
+        // Bytes appended and bytes known forced, counted across generations.
+        private volatile long appended;
+        private final AtomicLong durable = new AtomicLong();
+
+        InventoryJournal(Path dir, long flushIntervalMillis) throws IOException {
+            this.dir = Files.createDirectories(dir);
+            this.groupCommit = flushIntervalMillis <= 0;
+            this.background = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "inventory-journal");
+                t.setDaemon(true);
+                return t;
+            });
+            if (!groupCommit) {
+                background.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+
+        Lock mutationLock() {
+            return snapshotLock.readLock();
+        }
+
+        synchronized void append(byte type, byte[] key, long value) {
+            int pos = reserve(2 + key.length + Long.BYTES);
+            buffer.put((byte) key.length).put(key).putLong(value);
+            commit(pos, type);
+        }
+
+        synchronized void appendAdd(byte[] key, int stock, int shards, int waitlistCapacity) {
+            int pos = reserve(2 + key.length + 3 * Integer.BYTES);
+            buffer.put((byte) key.length).put(key).putInt(stock).putInt(shards).putInt(waitlistCapacity);
+            commit(pos, ADD);
+        }
+
+        void scheduleSnapshots(Supplier<Collection<ProductState>> products, long intervalMillis) {
+            background.scheduleWithFixedDelay(() -> {
+                try {
+                    snapshot(products.get());
+                } catch (IOException e) {
+                    System.err.println("inventory snapshot failed: " + e);
+                }
+            }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        void snapshot(Collection<ProductState> products) throws IOException {
+            snapshotLock.writeLock().lock();
+            try {
+                synchronized (this) {
+                    long next = generation + 1;
+                    Path tmp = dir.resolve("snapshot.tmp");
+                    try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+                         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+                        out.writeLong(next);
+                        out.writeInt(products.size());
+                        for (ProductState p : products) {
+                            out.writeUTF(p.productId);
+                            out.writeInt(p.shards);
+                            out.writeInt(p.waitlistCapacity);
+                            out.writeInt(p.checkStock());
+                            p.waitlist.writeTo(out);
+                            p.sales.writeTo(out);
+                        }
+                        out.flush();
+                        fos.getFD().sync();
+                    }
+                    Files.move(tmp, dir.resolve("snapshot.bin"), StandardCopyOption.ATOMIC_MOVE,
+                            StandardCopyOption.REPLACE_EXISTING);
+                    Path previous = logPath(generation);
+                    openLog(next, 0);
+                    Files.deleteIfExists(previous);
+                }
+            } finally {
+                snapshotLock.writeLock().unlock();
+            }
+        }
+
+        // Loads the latest snapshot, replays the log tail into the given map and leaves the log open for appends.
+        synchronized void recover(Map<String, ProductState> inventory) throws IOException {
+            Path snapshot = dir.resolve("snapshot.bin");
+            generation = 0;
+            if (Files.exists(snapshot)) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+                    generation = in.readLong();
+                    int products = in.readInt();
+                    for (int i = 0; i < products; i++) {
+                        String id = in.readUTF();
+                        int shards = in.readInt();
+                        int capacity = in.readInt();
+                        ProductState p = new ProductState(id, in.readInt(), shards, capacity);
+                        p.waitlist.readFrom(in);
+                        p.sales.readFrom(in);
+                        inventory.put(id, p);
+                    }
+                }
+            }
+
+            openLog(generation, 0);
+            replay(inventory);
+        }
+
+        // Takes the unforced range under the append monitor and forces it after releasing it. Must not be called
+        // while holding the monitor; forceLock keeps concurrent flushes from handing out overlapping ranges, and a
+        // flush that finds nothing dirty returns only after the flush that took the range has finished forcing it.
+        void flush() {
+            synchronized (forceLock) {
+                MappedByteBuffer target;
+                int from;
+                int to;
+                long mark;
+                synchronized (this) {
+                    if (!dirty) return;
+                    dirty = false;
+                    target = buffer;
+                    from = forcedUpTo;
+                    to = buffer.position();
+                    forcedUpTo = to;
+                    mark = appended;
+                }
+                target.force(from, to - from);
+                durable.accumulateAndGet(mark, Math::max);
+            }
+        }
+
+        // In group-commit mode, returns once everything appended before the call is on disk; a no-op otherwise.
+        // Must not be called while holding snapshotLock or the append monitor.
+        void awaitCommit() {
+            if (groupCommit && durable.get() < appended) flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            background.shutdownNow();
+            synchronized (this) {
+                forceAll();
+                channel.close();
+            }
+        }
+
+        // Purchases take stock before appending TAKE, so a TAKE can precede the RESTOCK whose unit it consumed.
+        // Stock changes are therefore summed as signed deltas and applied once the whole tail has been read.
+        private void replay(Map<String, ProductState> inventory) {
+            Map<ProductState, long[]> stockDeltas = new HashMap<>();
+            byte[] key = new byte[255];
+            while (buffer.remaining() > 2) {
+                int pos = buffer.position();
+                byte type = buffer.get();
+                if (type == 0) {
+                    buffer.position(pos);
+                    break;
+                }
+                int len = buffer.get() & 0xFF;
+                buffer.get(key, 0, len);
+                String id = new String(key, 0, len, StandardCharsets.UTF_8);
+                if (type == ADD) {
+                    int stock = buffer.getInt();
+                    int shards = buffer.getInt();
+                    inventory.put(id, new ProductState(id, stock, shards, buffer.getInt()));
+                    continue;
+                }
+                long value = buffer.getLong();
+                ProductState p = inventory.get(id);
+                if (p == null) continue;
+                long[] delta = stockDeltas.computeIfAbsent(p, k -> new long[1]);
+                switch (type) {
+                    case TAKE -> {
+                        p.sales.add(value);
+                        delta[0]--;
+                    }
+                    case WAITLIST -> p.waitlist.offer(value);
+                    case RESTOCK -> delta[0] += replayFulfill(p, (int) value);
+                    case CANCEL -> p.waitlist.cancel(value);
+                    case REFUND -> {
+                        p.sales.release(value);
+                        delta[0] += replayFulfill(p, 1);
+                    }
+                    default -> throw new IllegalStateException("Corrupt journal record type " + type + " at " + pos);
+                }
+            }
+            stockDeltas.forEach((p, delta) -> {
+                if (delta[0] > 0) p.stock.add((int) delta[0]);
+                else if (delta[0] < 0) p.stock.tryTakeUpTo((int) -delta[0]);
+            });
+        }
+
+        // Serves waiters like ProductState.fulfill but returns the leftover units instead of adding them to stock.
+        private static int replayFulfill(ProductState p, int units) {
+            long[] fulfilled = p.waitlist.drain(units);
+            for (long userId : fulfilled) p.sales.add(userId);
+            return units - fulfilled.length;
+        }
+
+        private int reserve(int payloadBytes) {
+            // Keep at least one zero byte after the last record so replay can find the end of the log.
+            if (buffer.remaining() < payloadBytes + 2) remap((long) buffer.capacity() * 2 + payloadBytes);
+            int pos = buffer.position();
+            buffer.position(pos + 1);
+            return pos;
+        }
+
+        private void commit(int pos, byte type) {
+            // The type byte is written last so a torn record reads as end-of-log.
+            buffer.put(pos, type);
+            dirty = true;
+            appended += buffer.position() - pos;
+        }
+
+        private void openLog(long gen, int position) throws IOException {
+            if (channel != null) {
+                forceAll();
+                channel.close();
+            }
+            generation = gen;
+            channel = FileChannel.open(logPath(gen), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), 16L << 20));
+            buffer.position(position);
+            forcedUpTo = position;
+        }
+
+        // Generation switches, remaps and close force everything while holding the monitor; they are rare.
+        private void forceAll() {
+            buffer.force();
+            forcedUpTo = buffer.position();
+            dirty = false;
+            durable.accumulateAndGet(appended, Math::max);
+        }
+
+        private void remap(long size) {
+            try {
+                forceAll();
+                int pos = buffer.position();
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.position(pos);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot grow inventory journal", e);
+            }
+        }
+
+        private void flushQuietly() {
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                System.err.println("inventory journal flush failed: " + e);
+            }
         }
+
+        private Path logPath(long gen) {
+            return dir.resolve("journal-" + gen + ".log");
+        }
+    }
+
+    static class PendingPurchases {
+        record Request(long userId, CompletableFuture<PurchaseResult> future) {}
+
+        final ConcurrentLinkedQueue<Request> queue = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean scheduled = new AtomicBoolean();
     }
 
     static class InventoryManager {
+        private static final int MAX_GROUP_SIZE = 4096;
+
         private final Map<String, ProductState> inventory = new ConcurrentHashMap<>();
+        private final Map<String, PendingPurchases> pending = new ConcurrentHashMap<>();
+        private final ExecutorService batcher = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "purchase-batcher");
+            t.setDaemon(true);
+            return t;
+        });
+        private InventoryJournal journal;
+        private volatile boolean closed;
+
+        // Recovers state from dir (snapshot + log tail) and journals every subsequent change there. A flush interval
+        // <= 0 selects group commit; a positive one selects async durability (see InventoryJournal).
+        static InventoryManager open(Path dir, long flushIntervalMillis, long snapshotIntervalMillis) throws IOException {
+            InventoryManager manager = new InventoryManager();
+            InventoryJournal journal = new InventoryJournal(dir, flushIntervalMillis);
+            journal.recover(manager.inventory);
+            for (ProductState p : manager.inventory.values()) p.journal = journal;
+            manager.journal = journal;
+            if (snapshotIntervalMillis > 0) journal.scheduleSnapshots(manager.inventory::values, snapshotIntervalMillis);
+            return manager;
+        }
 
         void addProduct(String productId, int stock) {
-            inventory.put(productId, new ProductState(stock));
+            addProduct(productId, stock, 1);
+        }
+
+        void addProduct(String productId, int stock, int shards) {
+            addProduct(productId, stock, shards, ProductState.DEFAULT_WAITLIST_CAPACITY);
+        }
+
+        void addProduct(String productId, int stock, int shards, int waitlistCapacity) {
+            ProductState product = new ProductState(productId, stock, shards, waitlistCapacity);
+            // Journal records store the id behind a one-byte length.
+            if (journal != null && product.journalKey.length > 255) {
+                throw new IllegalArgumentException("Product id too long to journal: " + productId);
+            }
+            mutate(() -> {
+                if (journal != null) {
+                    product.journal = journal;
+                    journal.appendAdd(product.journalKey, stock, shards, waitlistCapacity);
+                }
+                inventory.put(productId, product);
+                return null;
+            });
+        }
+
+        long[] restock(String productId, int units) {
+            ProductState product = inventory.get(productId);
+            if (product == null) return new long[0];
+            return mutate(() -> product.restock(units));
+        }
+
+        // Returns one unit bought by userId to stock, handing it to the head of the waiting list if there is one, and
+        // returns the users whose waitlisted purchases that fulfilled.
+        long[] cancelPurchase(String productId, long userId) {
+            ProductState product = inventory.get(productId);
+            long[] fulfilled = product == null ? null : mutate(() -> product.cancelSale(userId));
+            if (fulfilled == null) {
+                throw new IllegalArgumentException("No recorded purchase of " + productId + " by user " + userId);
+            }
+            return fulfilled;
+        }
+
+        // Withdraws a waitlisted purchase by the ticket from its PurchaseResult; false once served or cancelled.
+        boolean withdrawFromWaitlist(String productId, long ticket) {
+            ProductState product = inventory.get(productId);
+            if (product == null) return false;
+            return mutate(() -> product.cancelWaiting(ticket));
+        }
+
+        // 1-based waiting-list position for a ticket, or 0 once it has been fulfilled or cancelled.
+        int waitlistPosition(String productId, long ticket) {
+            ProductState product = inventory.get(productId);
+            return product == null ? 0 : product.waitlistPosition(ticket);
         }
 
         int checkStock(String productId) {
@@ -52,17 +958,217 @@ public class Problem2FlashSaleInventoryManager {
             if (product == null) {
                 return new PurchaseResult(false, "Unknown product: " + productId);
             }
-            return product.purchase(userId);
+            return mutate(() -> product.purchase(userId));
+        }
+
+        PurchaseResult[] purchaseBatch(String productId, long[] userIds) {
+            ProductState product = inventory.get(productId);
+            if (product == null) {
+                PurchaseResult[] results = new PurchaseResult[userIds.length];
+                Arrays.fill(results, new PurchaseResult(false, "Unknown product: " + productId));
+                return results;
+            }
+            return mutate(() -> product.purchaseBatch(userIds));
+        }
+
+        // Queues the purchase; concurrent submissions for the same SKU are coalesced into one purchaseBatch.
+        CompletableFuture<PurchaseResult> submitPurchase(String productId, long userId) {
+            CompletableFuture<PurchaseResult> future = new CompletableFuture<>();
+            if (closed) {
+                future.completeExceptionally(new IllegalStateException("InventoryManager is closed"));
+                return future;
+            }
+            PendingPurchases group = pending.computeIfAbsent(productId, id -> new PendingPurchases());
+            group.queue.add(new PendingPurchases.Request(userId, future));
+            if (group.scheduled.compareAndSet(false, true)) {
+                try {
+                    batcher.execute(() -> flush(productId, group));
+                } catch (RejectedExecutionException e) {
+                    failAll(group);
+                }
+            }
+            // close() may have swept the pending groups just before this request was queued.
+            if (closed) failAll(group);
+            return future;
+        }
+
+        void snapshot() throws IOException {
+            if (journal != null) journal.snapshot(inventory.values());
+        }
+
+        void close() throws IOException {
+            closed = true;
+            batcher.shutdownNow();
+            for (PendingPurchases group : pending.values()) failAll(group);
+            if (journal != null) journal.close();
+        }
+
+        // Without a journal a mutation runs bare. With one it holds the snapshot read lock, then, once that is
+        // released, waits for its events to be forced in group-commit mode.
+        private <T> T mutate(Supplier<T> action) {
+            InventoryJournal j = journal;
+            if (j == null) return action.get();
+            T result;
+            Lock lock = j.mutationLock();
+            lock.lock();
+            try {
+                result = action.get();
+            } finally {
+                lock.unlock();
+            }
+            j.awaitCommit();
+            return result;
+        }
+
+        private void flush(String productId, PendingPurchases group) {
+            PendingPurchases.Request[] requests = new PendingPurchases.Request[MAX_GROUP_SIZE];
+            while (true) {
+                if (closed) {
+                    failAll(group);
+                    return;
+                }
+                int n = 0;
+                PendingPurchases.Request r;
+                while (n < requests.length && (r = group.queue.poll()) != null) requests[n++] = r;
+                if (n > 0) {
+                    long[] userIds = new long[n];
+                    for (int i = 0; i < n; i++) userIds[i] = requests[i].userId();
+                    try {
+                        PurchaseResult[] results = purchaseBatch(productId, userIds);
+                        for (int i = 0; i < n; i++) requests[i].future().complete(results[i]);
+                    } catch (RuntimeException e) {
+                        for (int i = 0; i < n; i++) requests[i].future().completeExceptionally(e);
+                    }
+                    continue;
+                }
+                group.scheduled.set(false);
+                // Drop the idle group so one-off SKUs don't accumulate. A submitter still holding it gets its
+                // request served by its own flush (or ours, below), just without sharing a batch with a newer group.
+                if (group.queue.isEmpty()) pending.remove(productId, group);
+                // A submitter may have enqueued after our last poll but seen scheduled == true; pick it up.
+                if (group.queue.isEmpty() || !group.scheduled.compareAndSet(false, true)) return;
+            }
+        }
+
+        private static void failAll(PendingPurchases group) {
+            PendingPurchases.Request r;
+            while ((r = group.queue.poll()) != null) {
+                r.future().completeExceptionally(new IllegalStateException("InventoryManager is closed"));
+            }
         }
     }
 
-    public static void main(String[] args) {
+    // Raw counter takes, then purchaseItem end to end (lookup, take, result message) on the same stock layout.
+    static void runContentionBenchmark() throws InterruptedException {
+        int takesPerThread = 200_000;
+        int shards = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%-8s %15s %15s %17s %17s%n", "threads", "cas ops/ms", "sharded ops/ms", "cas purchases/ms",
+                "sharded purch./ms");
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            int total = threads * takesPerThread;
+            double cas = measureTakes(new CasStockCounter(total), threads, takesPerThread);
+            double sharded = measureTakes(new ShardedStockCounter(total, shards), threads, takesPerThread);
+            double casPurchases = measurePurchases(new InventoryManager(), 1, threads, takesPerThread);
+            double shardedPurchases = measurePurchases(new InventoryManager(), shards, threads, takesPerThread);
+            System.out.printf("%-8d %15.0f %15.0f %17.0f %17.0f%n", threads, cas, sharded, casPurchases, shardedPurchases);
+        }
+    }
+
+    private static double measureTakes(StockCounter counter, int threads, int takesPerThread) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < takesPerThread; i++) counter.tryTake();
+            });
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread w : workers) w.join();
+        long elapsed = System.nanoTime() - begin;
+        if (counter.available() != 0) throw new IllegalStateException("stock not drained: " + counter.available());
+        return (double) threads * takesPerThread / (elapsed / 1_000_000.0);
+    }
+
+    static void runJournalBenchmark() throws IOException, InterruptedException {
+        int threads = 8;
+        int purchasesPerThread = 250_000;
+        Path dir = Files.createTempDirectory("inventory-journal");
+        Path groupDir = Files.createTempDirectory("inventory-journal");
+        InventoryManager plain = new InventoryManager();
+        InventoryManager journaled = InventoryManager.open(dir, 5, 0);
+        InventoryManager groupCommit = InventoryManager.open(groupDir, 0, 0);
+        System.out.printf("journal off:          %.0f purchases/ms%n", measurePurchases(plain, 1, threads, purchasesPerThread));
+        System.out.printf("journal async (5ms):  %.0f purchases/ms%n",
+                measurePurchases(journaled, 1, threads, purchasesPerThread));
+        System.out.printf("journal group commit: %.0f purchases/ms%n",
+                measurePurchases(groupCommit, 1, threads, purchasesPerThread / 10));
+        groupCommit.close();
+        int expectedStock = journaled.checkStock("BENCH_SKU");
+        journaled.close();
+        plain.close();
+
+        long begin = System.nanoTime();
+        InventoryManager recovered = InventoryManager.open(dir, 5, 0);
+        long elapsed = System.nanoTime() - begin;
+        System.out.printf("recovered %d events in %.1fms, stock %d (expected %d)%n",
+                threads * purchasesPerThread + 1, elapsed / 1_000_000.0, recovered.checkStock("BENCH_SKU"), expectedStock);
+        recovered.close();
+    }
+
+    private static double measurePurchases(InventoryManager manager, int shards, int threads, int purchasesPerThread)
+            throws InterruptedException {
+        manager.addProduct("BENCH_SKU", threads * purchasesPerThread, shards);
+        Thread[] workers = new Thread[threads];
+        long begin = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            long base = (long) t * purchasesPerThread;
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < purchasesPerThread; i++) manager.purchaseItem("BENCH_SKU", base + i);
+            });
+            workers[t].start();
+        }
+        for (Thread w : workers) w.join();
+        long elapsed = System.nanoTime() - begin;
+        return (double) threads * purchasesPerThread / (elapsed / 1_000_000.0);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && args[0].equals("bench")) {
+            runContentionBenchmark();
+            runJournalBenchmark();
+            return;
+        }
+
         InventoryManager manager = new InventoryManager();
         manager.addProduct("IPHONE15_256GB", 2);
 
         System.out.println("checkStock(\"IPHONE15_256GB\") -> " + manager.checkStock("IPHONE15_256GB") + " units available");
         System.out.println("purchaseItem(...,12345) -> " + manager.purchaseItem("IPHONE15_256GB", 12345).message());
         System.out.println("purchaseItem(...,67890) -> " + manager.purchaseItem("IPHONE15_256GB", 67890).message());
-        System.out.println("purchaseItem(...,99999) -> " + manager.purchaseItem("IPHONE15_256GB", 99999).message());
+        PurchaseResult queued = manager.purchaseItem("IPHONE15_256GB", 99999);
+        System.out.println("purchaseItem(...,99999) -> " + queued.message());
+        PurchaseResult behind = manager.purchaseItem("IPHONE15_256GB", 11111);
+        System.out.println("purchaseItem(...,11111) -> " + behind.message());
+        System.out.println("withdrawFromWaitlist(...,ticket of 99999) -> "
+                + manager.withdrawFromWaitlist("IPHONE15_256GB", queued.ticket()));
+        System.out.println("waitlistPosition(...,ticket of 11111) -> #"
+                + manager.waitlistPosition("IPHONE15_256GB", behind.ticket()));
+        System.out.println("cancelPurchase(...,12345) -> fulfilled "
+                + Arrays.toString(manager.cancelPurchase("IPHONE15_256GB", 12345)));
+        System.out.println("checkStock(\"IPHONE15_256GB\") -> " + manager.checkStock("IPHONE15_256GB") + " units available");
+
+        manager.addProduct("PS5_DIGITAL", 3);
+        System.out.println("purchaseBatch(PS5_DIGITAL,[1..5]) -> "
+                + Arrays.toString(manager.purchaseBatch("PS5_DIGITAL", new long[] {1, 2, 3, 4, 5})));
+        manager.restock("PS5_DIGITAL", 4);
+        System.out.println("submitPurchase(PS5_DIGITAL,6) -> " + manager.submitPurchase("PS5_DIGITAL", 6).join().message());
+        manager.close();
     }
 }
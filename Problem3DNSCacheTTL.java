@@ -1,10 +1,21 @@
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 public class Problem3DNSCacheTTL {
     interface UpstreamDns {
@@ -17,15 +28,463 @@ public class Problem3DNSCacheTTL {
         }
     }
 
-    static class DNSCache {
-        private final LinkedHashMap<String, DNSEntry> cache;
+    interface CachingResolver extends AutoCloseable {
+        String resolve(String domain, int ttlSeconds);
+
+        String getCacheStats();
+
+        @Override
+        void close();
+    }
+
+    // System.nanoTime() sampled once per millisecond by a dedicated ticker thread, so a slow expiry pass never lets
+    // it drift; reads are a volatile load.
+    static final class CachedClock {
+        private volatile long nanos = System.nanoTime();
+
+        long nanos() {
+            return nanos;
+        }
+
+        void tick() {
+            nanos = System.nanoTime();
+        }
+    }
+
+    // Two-level hashed timing wheel keyed on each node's eviction deadline. Level 0 has one slot per tick; level 1
+    // has one slot per level-0 rotation and is cascaded into level 0 as each rotation starts, so a long-TTL node is
+    // touched at most twice before it is due. Nodes sit on intrusive lists and are unlinked as soon as the cache
+    // evicts or replaces them. Expired nodes are handed to the callback after the wheel lock is released.
+    static final class TimerWheel {
+        private final long tickNanos;
+        private final int bits;
+        private final int mask;
+        // Sentinels of circular lists: [0, slots) is level 0, [slots, 2 * slots) is level 1.
+        private final DNSCache.Node[] buckets;
+        private long currentTick;
+
+        TimerWheel(long tickNanos, int slotCount, long nowNanos) {
+            this.tickNanos = tickNanos;
+            int n = Integer.highestOneBit(slotCount - 1) << 1;
+            this.bits = Integer.numberOfTrailingZeros(n);
+            this.mask = n - 1;
+            this.buckets = new DNSCache.Node[2 * n];
+            for (int i = 0; i < buckets.length; i++) {
+                DNSCache.Node sentinel = new DNSCache.Node(null, null, 0, 0, 0);
+                sentinel.wheelPrev = sentinel.wheelNext = sentinel;
+                buckets[i] = sentinel;
+            }
+            this.currentTick = nowNanos / tickNanos;
+        }
+
+        synchronized void schedule(DNSCache.Node node) {
+            cancel(node);
+            place(node, currentTick);
+        }
+
+        synchronized void cancel(DNSCache.Node node) {
+            if (node.wheelBucket < 0) return;
+            node.wheelPrev.wheelNext = node.wheelNext;
+            node.wheelNext.wheelPrev = node.wheelPrev;
+            node.wheelPrev = node.wheelNext = null;
+            node.wheelBucket = -1;
+        }
+
+        // Called from a single maintenance thread.
+        void advance(long nowNanos, Consumer<DNSCache.Node> onExpired) {
+            List<DNSCache.Node> expired = new ArrayList<>();
+            synchronized (this) {
+                long target = nowNanos / tickNanos;
+                for (; currentTick <= target; currentTick++) {
+                    if ((currentTick & mask) == 0) {
+                        DNSCache.Node upper = buckets[mask + 1 + (int) ((currentTick >>> bits) & mask)];
+                        for (DNSCache.Node node = upper.wheelNext; node != upper; node = upper.wheelNext) {
+                            cancel(node);
+                            place(node, currentTick);
+                        }
+                    }
+                    DNSCache.Node slot = buckets[(int) (currentTick & mask)];
+                    for (DNSCache.Node node = slot.wheelNext; node != slot; node = slot.wheelNext) {
+                        cancel(node);
+                        if (node.staleUntilNanos <= nowNanos) {
+                            expired.add(node);
+                        } else {
+                            place(node, currentTick + 1);
+                        }
+                    }
+                }
+            }
+            expired.forEach(onExpired);
+        }
+
+        private void place(DNSCache.Node node, long minTick) {
+            long tick = Math.max(node.staleUntilNanos / tickNanos + 1, minTick);
+            int bucket;
+            if (tick - currentTick <= mask) {
+                bucket = (int) (tick & mask);
+            } else {
+                // Deadlines beyond level 1's span park in its last slot and are re-placed when it cascades.
+                long rotation = Math.min(tick >>> bits, (currentTick >>> bits) + mask);
+                bucket = mask + 1 + (int) (rotation & mask);
+            }
+            DNSCache.Node sentinel = buckets[bucket];
+            node.wheelBucket = bucket;
+            node.wheelPrev = sentinel.wheelPrev;
+            node.wheelNext = sentinel;
+            sentinel.wheelPrev.wheelNext = node;
+            sentinel.wheelPrev = node;
+        }
+    }
+
+    // Reads go straight to the ConcurrentHashMap and only set a CLOCK reference bit, so hits never take a lock.
+    // Eviction is striped: each segment owns the ring for its share of the keys, and its lock is held only for
+    // inserts, evictions and removals of that share. Rings get twice their even share as headroom so an unlucky
+    // hash spread does not evict early; maxSize is enforced on a shared counter instead, and an insert that pushes
+    // it over evicts from the next non-empty segment. Expiry is driven by a TimerWheel instead of full scans.
+    static class DNSCache implements CachingResolver {
+        private static final int MIN_SEGMENT_CAPACITY = 64;
+        private static final int MAX_SEGMENTS = 64;
+        private static final long WHEEL_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+        static final class Node {
+            final String domain;
+            final String ipAddress;
+            final long expiresAtNanos;
+            final long refreshAtNanos;
+            final long staleUntilNanos;
+            volatile boolean referenced;
+            int slot;
+            // Guarded by the TimerWheel's monitor; wheelBucket is -1 while the node is not scheduled.
+            Node wheelPrev;
+            Node wheelNext;
+            int wheelBucket = -1;
+
+            Node(String domain, String ipAddress, long expiresAtNanos, long refreshAtNanos, long staleUntilNanos) {
+                this.domain = domain;
+                this.ipAddress = ipAddress;
+                this.expiresAtNanos = expiresAtNanos;
+                this.refreshAtNanos = refreshAtNanos;
+                this.staleUntilNanos = staleUntilNanos;
+            }
+        }
+
+        static final class Segment {
+            final ConcurrentHashMap<String, Node> map;
+            final CachedClock clock;
+            final TimerWheel expiry;
+            final AtomicInteger totalSize;
+            final int maxSize;
+            final ReentrantLock lock = new ReentrantLock();
+            final Node[] ring;
+            int size;
+            int hand;
+
+            Segment(ConcurrentHashMap<String, Node> map, CachedClock clock, TimerWheel expiry, AtomicInteger totalSize,
+                    int maxSize, int capacity) {
+                this.map = map;
+                this.clock = clock;
+                this.expiry = expiry;
+                this.totalSize = totalSize;
+                this.maxSize = maxSize;
+                this.ring = new Node[capacity];
+            }
+
+            void put(Node node) {
+                lock.lock();
+                try {
+                    Node old = map.get(node.domain);
+                    if (old != null) {
+                        node.slot = old.slot;
+                        expiry.cancel(old);
+                    } else if (size > 0 && (size == ring.length || totalSize.get() >= maxSize)) {
+                        node.slot = evictOne();
+                    } else {
+                        node.slot = size++;
+                        totalSize.incrementAndGet();
+                    }
+                    ring[node.slot] = node;
+                    map.put(node.domain, node);
+                    expiry.schedule(node);
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            void remove(Node node) {
+                lock.lock();
+                try {
+                    // The node may already have been replaced by a refresh or evicted and its slot reused.
+                    if (node.slot < size && ring[node.slot] == node) removeAt(node.slot);
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            boolean shrink() {
+                lock.lock();
+                try {
+                    if (size == 0) return false;
+                    removeAt(evictOne());
+                    return true;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            // CLOCK sweep: entries past their stale window go first, then the first one not read since the hand passed.
+            private int evictOne() {
+                long now = clock.nanos();
+                while (true) {
+                    Node candidate = ring[hand];
+                    int slot = hand;
+                    hand = (hand + 1) % size;
+                    if (candidate.referenced && candidate.staleUntilNanos > now) {
+                        candidate.referenced = false;
+                        continue;
+                    }
+                    map.remove(candidate.domain, candidate);
+                    expiry.cancel(candidate);
+                    return slot;
+                }
+            }
+
+            private void removeAt(int i) {
+                Node victim = ring[i];
+                map.remove(victim.domain, victim);
+                expiry.cancel(victim);
+                Node last = ring[--size];
+                ring[i] = last;
+                last.slot = i;
+                ring[size] = null;
+                if (hand >= size) hand = 0;
+                totalSize.decrementAndGet();
+            }
+        }
+
+        private final ConcurrentHashMap<String, Node> map;
+        private final int maxSize;
+        private final AtomicInteger totalSize = new AtomicInteger();
+        private final CachedClock clock = new CachedClock();
+        private final TimerWheel expiry;
+        private final Segment[] segments;
         private final UpstreamDns upstreamDns;
+        private final double refreshAheadFraction;
+        private final int staleSeconds;
+        private final ConcurrentHashMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
         private final LongAdder hits = new LongAdder();
         private final LongAdder misses = new LongAdder();
+        private final LongAdder staleServed = new LongAdder();
+        private final LongAdder refreshes = new LongAdder();
+        private final LongAdder upstreamCalls = new LongAdder();
         private final LongAdder totalLookupNanos = new LongAdder();
+        private final ScheduledExecutorService ticker;
         private final ScheduledExecutorService cleaner;
+        private final ExecutorService refresher;
 
         DNSCache(int maxSize, UpstreamDns upstreamDns) {
+            this(maxSize, upstreamDns, 1.0, 0);
+        }
+
+        // refreshAheadFraction: share of the TTL after which a hit triggers a background re-resolve (>= 1 disables).
+        // staleSeconds: how long past expiry an entry may still be served while it is revalidated or upstream fails.
+        DNSCache(int maxSize, UpstreamDns upstreamDns, double refreshAheadFraction, int staleSeconds) {
+            if (maxSize <= 0) throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+            this.maxSize = maxSize;
+            this.upstreamDns = upstreamDns;
+            this.refreshAheadFraction = refreshAheadFraction;
+            this.staleSeconds = staleSeconds;
+            int count = Integer.highestOneBit(Math.max(1, Math.min(MAX_SEGMENTS, maxSize / MIN_SEGMENT_CAPACITY)));
+            int capacity = (int) Math.min(maxSize, 2L * ((maxSize + count - 1) / count));
+            this.map = new ConcurrentHashMap<>(maxSize * 4 / 3 + 1);
+            this.expiry = new TimerWheel(WHEEL_TICK_NANOS, 1024, clock.nanos());
+            this.segments = new Segment[count];
+            for (int i = 0; i < count; i++) {
+                segments[i] = new Segment(map, clock, expiry, totalSize, maxSize, capacity);
+            }
+
+            this.cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "dns-cleaner");
+                t.setDaemon(true);
+                return t;
+            });
+            this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "dns-clock");
+                t.setDaemon(true);
+                return t;
+            });
+            ticker.scheduleAtFixedRate(clock::tick, 1, 1, TimeUnit.MILLISECONDS);
+            cleaner.scheduleAtFixedRate(this::cleanupExpired, WHEEL_TICK_NANOS, WHEEL_TICK_NANOS, TimeUnit.NANOSECONDS);
+            this.refresher = Executors.newFixedThreadPool(4, r -> {
+                Thread t = new Thread(r, "dns-refresh");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        @Override
+        public String resolve(String domain, int ttlSeconds) {
+            long start = System.nanoTime();
+            Node node = map.get(domain);
+            if (node != null) {
+                if (!node.referenced) node.referenced = true;
+                long now = clock.nanos();
+                if (now <= node.expiresAtNanos) {
+                    if (now > node.refreshAtNanos) refreshAsync(domain, ttlSeconds);
+                    hits.increment();
+                    totalLookupNanos.add(System.nanoTime() - start);
+                    return "Cache HIT -> " + node.ipAddress;
+                }
+                if (now <= node.staleUntilNanos) {
+                    refreshAsync(domain, ttlSeconds);
+                    staleServed.increment();
+                    totalLookupNanos.add(System.nanoTime() - start);
+                    return "Cache STALE -> " + node.ipAddress;
+                }
+            }
+
+            // Every lookup lands in exactly one of hits, misses and staleServed; a miss rescued by a stale entry
+            // counts as stale, a failed one as a miss.
+            String ip;
+            try {
+                ip = fetch(domain, ttlSeconds).join();
+            } catch (CompletionException e) {
+                // Only an entry still inside its stale window may stand in for a failed upstream.
+                Node stale = map.get(domain);
+                if (stale == null || clock.nanos() > stale.staleUntilNanos) {
+                    misses.increment();
+                    totalLookupNanos.add(System.nanoTime() - start);
+                    throw e.getCause() instanceof RuntimeException re ? re : e;
+                }
+                staleServed.increment();
+                totalLookupNanos.add(System.nanoTime() - start);
+                return "Cache STALE -> " + stale.ipAddress;
+            }
+            misses.increment();
+            totalLookupNanos.add(System.nanoTime() - start);
+            return "Cache MISS -> " + ip;
+        }
+
+        public String getRefreshStats() {
+            return String.format("Upstream Calls: %d, Background Refreshes: %d, Stale Served: %d",
+                    upstreamCalls.sum(), refreshes.sum(), staleServed.sum());
+        }
+
+        // Single-flight: the first caller for a domain resolves it inline, later callers wait on the same future.
+        private CompletableFuture<String> fetch(String domain, int ttlSeconds) {
+            CompletableFuture<String> mine = new CompletableFuture<>();
+            CompletableFuture<String> existing = inFlight.putIfAbsent(domain, mine);
+            if (existing != null) return existing;
+            runFetch(domain, ttlSeconds, mine);
+            return mine;
+        }
+
+        private void refreshAsync(String domain, int ttlSeconds) {
+            CompletableFuture<String> mine = new CompletableFuture<>();
+            if (inFlight.putIfAbsent(domain, mine) != null) return;
+            try {
+                refresher.execute(() -> runFetch(domain, ttlSeconds, mine));
+            } catch (RejectedExecutionException e) {
+                // Closed: don't leave a future behind that later lookups would join forever.
+                inFlight.remove(domain, mine);
+                mine.completeExceptionally(e);
+                return;
+            }
+            refreshes.increment();
+        }
+
+        private void runFetch(String domain, int ttlSeconds, CompletableFuture<String> future) {
+            try {
+                upstreamCalls.increment();
+                String ip = upstreamDns.resolve(domain);
+                long now = System.nanoTime();
+                long ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+                long expiresAt = now + ttlNanos;
+                long refreshAt = refreshAheadFraction >= 1.0 ? expiresAt : now + (long) (ttlNanos * refreshAheadFraction);
+                Node node = new Node(domain, ip, expiresAt, refreshAt, expiresAt + TimeUnit.SECONDS.toNanos(staleSeconds));
+                int segment = segmentIndex(domain);
+                segments[segment].put(node);
+                if (totalSize.get() > maxSize) evictElsewhere(segment);
+                future.complete(ip);
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+                if (e instanceof Error error) throw error;
+            } finally {
+                inFlight.remove(domain, future);
+            }
+        }
+
+        @Override
+        public String getCacheStats() {
+            long h = hits.longValue();
+            long total = h + misses.longValue() + staleServed.longValue();
+            double hitRate = total == 0 ? 0.0 : (h * 100.0 / total);
+            double avgMs = total == 0 ? 0.0 : (totalLookupNanos.doubleValue() / total) / 1_000_000.0;
+            return String.format("Hit Rate: %.1f%%, Avg Lookup Time: %.3fms", hitRate, avgMs);
+        }
+
+        @Override
+        public void close() {
+            ticker.shutdownNow();
+            cleaner.shutdownNow();
+            refresher.shutdownNow();
+        }
+
+        private void cleanupExpired() {
+            expiry.advance(clock.nanos(), node -> segmentFor(node.domain).remove(node));
+        }
+
+        // The inserting segment was empty while the cache was full; take the overshoot back from a neighbour.
+        private void evictElsewhere(int from) {
+            for (int i = 1; i <= segments.length && totalSize.get() > maxSize; i++) {
+                segments[(from + i) & (segments.length - 1)].shrink();
+            }
+        }
+
+        private Segment segmentFor(String domain) {
+            return segments[segmentIndex(domain)];
+        }
+
+        private int segmentIndex(String domain) {
+            int h = domain.hashCode();
+            return (h ^ (h >>> 16)) & (segments.length - 1);
+        }
+    }
+
+    static class FakeUpstreamDns implements UpstreamDns {
+        private final AtomicInteger calls = new AtomicInteger();
+        volatile long latencyMillis;
+        volatile boolean failing;
+
+        FakeUpstreamDns(long latencyMillis) {
+            this.latencyMillis = latencyMillis;
+        }
+
+        @Override
+        public String resolve(String domain) {
+            calls.incrementAndGet();
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failing) throw new IllegalStateException("upstream unavailable for " + domain);
+            return "172.217.14." + (Math.abs(domain.hashCode()) % 200 + 1);
+        }
+
+        int calls() {
+            return calls.get();
+        }
+    }
+
+    static class SynchronizedDNSCache implements CachingResolver {
+        private final LinkedHashMap<String, DNSEntry> cache;
+        private final UpstreamDns upstreamDns;
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder totalLookupNanos = new LongAdder();
+        private final ScheduledExecutorService cleaner;
+
+        SynchronizedDNSCache(int maxSize, UpstreamDns upstreamDns) {
             this.upstreamDns = upstreamDns;
             this.cache = new LinkedHashMap<>(16, 0.75f, true) {
                 @Override
@@ -42,6 +501,7 @@ public class Problem3DNSCacheTTL {
             cleaner.scheduleAtFixedRate(this::cleanupExpired, 2, 2, TimeUnit.SECONDS);
         }
 
+        @Override
         public synchronized String resolve(String domain, int ttlSeconds) {
             long start = System.nanoTime();
             DNSEntry entry = cache.get(domain);
@@ -58,6 +518,7 @@ public class Problem3DNSCacheTTL {
             return "Cache MISS -> " + ip;
         }
 
+        @Override
         public synchronized String getCacheStats() {
             long h = hits.longValue();
             long m = misses.longValue();
@@ -71,12 +532,59 @@ public class Problem3DNSCacheTTL {
             cache.entrySet().removeIf(e -> e.getValue().expired());
         }
 
+        @Override
         public void close() {
             cleaner.shutdownNow();
         }
     }
 
+    static void runHitThroughputBenchmark() throws InterruptedException {
+        UpstreamDns upstream = domain -> "10.0.0." + (Math.abs(domain.hashCode()) % 250 + 1);
+        int domains = 10_000;
+        int lookupsPerThread = 500_000;
+        System.out.printf("%-8s %18s %18s%n", "threads", "synchronized ops/ms", "segmented ops/ms");
+        for (int threads = 1; threads <= 32; threads *= 2) {
+            double legacy = measureHits(new SynchronizedDNSCache(2 * domains, upstream), domains, threads, lookupsPerThread);
+            double segmented = measureHits(new DNSCache(2 * domains, upstream), domains, threads, lookupsPerThread);
+            System.out.printf("%-8d %18.0f %18.0f%n", threads, legacy, segmented);
+        }
+    }
+
+    private static double measureHits(CachingResolver cache, int domains, int threads, int lookupsPerThread)
+            throws InterruptedException {
+        String[] names = new String[domains];
+        for (int i = 0; i < domains; i++) {
+            names[i] = "host" + i + ".example.com";
+            cache.resolve(names[i], 3600);
+        }
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < lookupsPerThread; i++) cache.resolve(names[(i * 31 + seed) % domains], 3600);
+            });
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread w : workers) w.join();
+        long elapsed = System.nanoTime() - begin;
+        cache.close();
+        return (double) threads * lookupsPerThread / (elapsed / 1_000_000.0);
+    }
+
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("bench")) {
+            runHitThroughputBenchmark();
+            return;
+        }
+
         UpstreamDns fakeUpstream = domain -> "172.217.14." + (Math.abs(domain.hashCode()) % 200 + 1);
         DNSCache cache = new DNSCache(3, fakeUpstream);
 
@@ -85,7 +593,23 @@ public class Problem3DNSCacheTTL {
         Thread.sleep(2100);
         System.out.println("resolve(google.com) -> " + cache.resolve("google.com", 2));
         System.out.println("getCacheStats() -> " + cache.getCacheStats());
-
         cache.close();
+
+        FakeUpstreamDns slowUpstream = new FakeUpstreamDns(200);
+        DNSCache coalescing = new DNSCache(100, slowUpstream, 0.5, 5);
+        Thread[] callers = new Thread[8];
+        for (int i = 0; i < callers.length; i++) {
+            callers[i] = new Thread(() -> coalescing.resolve("example.org", 1));
+            callers[i].start();
+        }
+        for (Thread t : callers) t.join();
+        System.out.println("8 concurrent misses -> " + slowUpstream.calls() + " upstream call(s)");
+
+        Thread.sleep(1100);
+        slowUpstream.failing = true;
+        System.out.println("resolve(example.org) after expiry, upstream down -> " + coalescing.resolve("example.org", 1));
+        Thread.sleep(300);
+        System.out.println("getRefreshStats() -> " + coalescing.getRefreshStats());
+        coalescing.close();
     }
 }
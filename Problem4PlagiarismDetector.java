@@ -1,10 +1,32 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 public class Problem4PlagiarismDetector {
     record MatchResult(String documentId, int matchingNgrams, double similarityPercent) {}
@@ -65,7 +87,1001 @@ public class Problem4PlagiarismDetector {
         }
     }
 
+    // Open-addressing long -> int[] postings map; doc ordinals are appended in increasing order.
+    static class LongPostings {
+        private long[] keys;
+        private int[][] postings;
+        private int[] lengths;
+        private boolean[] used;
+        private int size;
+
+        LongPostings(int expected) {
+            int cap = Integer.highestOneBit(Math.max(16, expected * 2) - 1) << 1;
+            keys = new long[cap];
+            postings = new int[cap][];
+            lengths = new int[cap];
+            used = new boolean[cap];
+        }
+
+        void add(long key, int doc) {
+            if (size * 2 >= keys.length) rehash();
+            int slot = slotOf(key);
+            if (!used[slot]) {
+                used[slot] = true;
+                keys[slot] = key;
+                postings[slot] = new int[2];
+                size++;
+            }
+            int len = lengths[slot];
+            if (len > 0 && postings[slot][len - 1] == doc) return;
+            if (len == postings[slot].length) postings[slot] = Arrays.copyOf(postings[slot], len * 2);
+            postings[slot][len] = doc;
+            lengths[slot] = len + 1;
+        }
+
+        // Returns the slot for key or -1; callers read postingsAt/lengthAt to avoid copying the list.
+        int find(long key) {
+            int slot = slotOf(key);
+            return used[slot] ? slot : -1;
+        }
+
+        int[] postingsAt(int slot) {
+            return postings[slot];
+        }
+
+        int lengthAt(int slot) {
+            return lengths[slot];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int capacity() {
+            return keys.length;
+        }
+
+        boolean usedAt(int slot) {
+            return used[slot];
+        }
+
+        long keyAt(int slot) {
+            return keys[slot];
+        }
+
+        private int slotOf(long key) {
+            int mask = keys.length - 1;
+            int slot = (int) (mix(key) & mask);
+            while (used[slot] && keys[slot] != key) slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        private void rehash() {
+            long[] oldKeys = keys;
+            int[][] oldPostings = postings;
+            int[] oldLengths = lengths;
+            boolean[] oldUsed = used;
+            keys = new long[oldKeys.length * 2];
+            postings = new int[keys.length][];
+            lengths = new int[keys.length];
+            used = new boolean[keys.length];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (!oldUsed[i]) continue;
+                int slot = slotOf(oldKeys[i]);
+                used[slot] = true;
+                keys[slot] = oldKeys[i];
+                postings[slot] = oldPostings[i];
+                lengths[slot] = oldLengths[i];
+            }
+        }
+
+        static long mix(long h) {
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+
+    record Document(String id, String content) {}
+
+    static final class IntList {
+        private int[] values = new int[16];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        int get(int i) {
+            return values[i];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+
+    // Open-addressing doc ordinal -> count map for the documents one query touches. It grows with the hits,
+    // so a query costs nothing per indexed document that it does not match.
+    static final class IntCounts {
+        private int[] keys;
+        private int[] counts;
+        private int size;
+
+        IntCounts(int expected) {
+            int cap = Integer.highestOneBit(Math.max(16, expected * 2) - 1) << 1;
+            keys = new int[cap];
+            counts = new int[cap];
+        }
+
+        // Returns the count after adding one.
+        int increment(int key) {
+            if (size * 2 >= keys.length) rehash();
+            int slot = slotOf(key);
+            if (counts[slot] == 0) {
+                keys[slot] = key;
+                size++;
+            }
+            return ++counts[slot];
+        }
+
+        int get(int key) {
+            return counts[slotOf(key)];
+        }
+
+        void clear() {
+            if (size == 0) return;
+            Arrays.fill(counts, 0);
+            size = 0;
+        }
+
+        private int slotOf(int key) {
+            int mask = keys.length - 1;
+            int slot = (int) (LongPostings.mix(key) & mask);
+            while (counts[slot] != 0 && keys[slot] != key) slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        private void rehash() {
+            int[] oldKeys = keys;
+            int[] oldCounts = counts;
+            keys = new int[oldKeys.length * 2];
+            counts = new int[keys.length];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldCounts[i] == 0) continue;
+                int slot = slotOf(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                counts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    interface IndexSegment {
+        int docCount();
+
+        String docId(int doc);
+
+        int fingerprintCount(int doc);
+
+        long[] fingerprints(int doc);
+
+        void forEachPosting(long fingerprint, IntConsumer action);
+
+        void forEachBucketDoc(long bandKey, IntConsumer action);
+    }
+
+    // Mutable in-memory segment that new documents are appended to until it is flushed to disk.
+    static class MemorySegment implements IndexSegment {
+        final LongPostings postings = new LongPostings(1 << 12);
+        final LongPostings lshBuckets = new LongPostings(1 << 6);
+        final List<String> docIds = new ArrayList<>();
+        final List<long[]> docFingerprints = new ArrayList<>();
+
+        void add(String docId, long[] fingerprints, long[] bandKeys) {
+            int doc = docIds.size();
+            docIds.add(docId);
+            docFingerprints.add(fingerprints);
+            for (long fp : fingerprints) postings.add(fp, doc);
+            for (long key : bandKeys) lshBuckets.add(key, doc);
+        }
+
+        @Override
+        public int docCount() {
+            return docIds.size();
+        }
+
+        @Override
+        public String docId(int doc) {
+            return docIds.get(doc);
+        }
+
+        @Override
+        public int fingerprintCount(int doc) {
+            return docFingerprints.get(doc).length;
+        }
+
+        @Override
+        public long[] fingerprints(int doc) {
+            return docFingerprints.get(doc);
+        }
+
+        @Override
+        public void forEachPosting(long fingerprint, IntConsumer action) {
+            forEach(postings, fingerprint, action);
+        }
+
+        @Override
+        public void forEachBucketDoc(long bandKey, IntConsumer action) {
+            forEach(lshBuckets, bandKey, action);
+        }
+
+        private static void forEach(LongPostings table, long key, IntConsumer action) {
+            int slot = table.find(key);
+            if (slot < 0) return;
+            int[] docs = table.postingsAt(slot);
+            for (int i = 0, len = table.lengthAt(slot); i < len; i++) action.accept(docs[i]);
+        }
+    }
+
+    // Read-only segment over a memory-mapped file. Layout (big-endian):
+    //   header: magic, n, window, bands, rows, docCount, postingKeys, postingTotal, bucketKeys, bucketTotal, fpTotal
+    //   int[docCount + 1] fingerprint offsets, long[fpTotal] fingerprints,
+    //   long[postingKeys] sorted keys, int[postingKeys + 1] offsets, int[postingTotal] doc ordinals,
+    //   the same three arrays for LSH buckets, then docCount (u16 length, UTF-8) document ids.
+    // Section offsets are computed as longs and checked against the mapping, which is capped at 2 GiB.
+    static class MappedSegment implements IndexSegment {
+        static final int MAGIC = 0x504C4731;
+        private static final int HEADER_INTS = 11;
+
+        final int firstSeq;
+        final int lastSeq;
+        private final MappedByteBuffer buffer;
+        private final int docCount;
+        private final int postingKeys;
+        private final int bucketKeys;
+        private final long fpOffsetsAt;
+        private final long fingerprintsAt;
+        private final long postingKeysAt;
+        private final long postingOffsetsAt;
+        private final long postingDocsAt;
+        private final long bucketKeysAt;
+        private final long bucketOffsetsAt;
+        private final long bucketDocsAt;
+        private final String[] docIds;
+
+        MappedSegment(Path file, int firstSeq, int lastSeq, int[] expectedConfig) throws IOException {
+            this.firstSeq = firstSeq;
+            this.lastSeq = lastSeq;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (buffer.getInt(0) != MAGIC) throw new IOException("Not a plagiarism index segment: " + file);
+            for (int i = 0; i < expectedConfig.length; i++) {
+                if (buffer.getInt(4 + 4 * i) != expectedConfig[i]) {
+                    throw new IOException("Segment " + file + " was built with a different n/window/bands/rows");
+                }
+            }
+            this.docCount = buffer.getInt(20);
+            this.postingKeys = buffer.getInt(24);
+            int postingTotal = buffer.getInt(28);
+            this.bucketKeys = buffer.getInt(32);
+            int bucketTotal = buffer.getInt(36);
+            int fpTotal = buffer.getInt(40);
+
+            this.fpOffsetsAt = HEADER_INTS * 4L;
+            this.fingerprintsAt = fpOffsetsAt + (docCount + 1) * 4L;
+            this.postingKeysAt = fingerprintsAt + fpTotal * 8L;
+            this.postingOffsetsAt = postingKeysAt + postingKeys * 8L;
+            this.postingDocsAt = postingOffsetsAt + (postingKeys + 1) * 4L;
+            this.bucketKeysAt = postingDocsAt + postingTotal * 4L;
+            this.bucketOffsetsAt = bucketKeysAt + bucketKeys * 8L;
+            this.bucketDocsAt = bucketOffsetsAt + (bucketKeys + 1) * 4L;
+            long idsAt = bucketDocsAt + bucketTotal * 4L;
+            boolean negative = (docCount | postingKeys | postingTotal | bucketKeys | bucketTotal | fpTotal) < 0;
+            if (negative || idsAt > buffer.capacity()) {
+                throw new IOException("Segment " + file + " is truncated or corrupt");
+            }
+
+            this.docIds = new String[docCount];
+            int pos = (int) idsAt;
+            for (int d = 0; d < docCount; d++) {
+                int len = buffer.getShort(pos) & 0xFFFF;
+                byte[] bytes = new byte[len];
+                buffer.get(pos + 2, bytes);
+                docIds[d] = new String(bytes, StandardCharsets.UTF_8);
+                pos += 2 + len;
+            }
+        }
+
+        // Writes to a temp file, forces it to disk, then renames it into place, so a segment file that exists
+        // is always complete and a merge may delete its inputs once the rename is done.
+        static void write(Path file, MemorySegment segment, int[] config) throws IOException {
+            long[] postingKeys = sortedKeys(segment.postings);
+            long[] bucketKeys = sortedKeys(segment.lshBuckets);
+            long fpTotal = 0;
+            for (long[] fps : segment.docFingerprints) fpTotal += fps.length;
+            long postingTotal = totalPostings(segment.postings);
+            long bucketTotal = totalPostings(segment.lshBuckets);
+            long size = HEADER_INTS * 4L + (segment.docCount() + 1) * 4L + fpTotal * 8L
+                    + postingKeys.length * 12L + 4 + postingTotal * 4L + bucketKeys.length * 12L + 4 + bucketTotal * 4L;
+            for (String id : segment.docIds) size += 2 + id.getBytes(StandardCharsets.UTF_8).length;
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Segment " + file + " would be " + size + " bytes, over the 2 GiB mapping limit");
+            }
+
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+                 DataOutputStream out = new DataOutputStream(
+                         new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16))) {
+                out.writeInt(MAGIC);
+                for (int c : config) out.writeInt(c);
+                out.writeInt(segment.docCount());
+                out.writeInt(postingKeys.length);
+                out.writeInt((int) postingTotal);
+                out.writeInt(bucketKeys.length);
+                out.writeInt((int) bucketTotal);
+                out.writeInt((int) fpTotal);
+
+                int offset = 0;
+                out.writeInt(0);
+                for (long[] fps : segment.docFingerprints) out.writeInt(offset += fps.length);
+                for (long[] fps : segment.docFingerprints) {
+                    for (long fp : fps) out.writeLong(fp);
+                }
+                writeTable(out, segment.postings, postingKeys);
+                writeTable(out, segment.lshBuckets, bucketKeys);
+                for (String id : segment.docIds) {
+                    byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+                    out.writeShort(bytes.length);
+                    out.write(bytes);
+                }
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        long bytes() {
+            return buffer.capacity();
+        }
+
+        @Override
+        public int docCount() {
+            return docCount;
+        }
+
+        @Override
+        public String docId(int doc) {
+            return docIds[doc];
+        }
+
+        @Override
+        public int fingerprintCount(int doc) {
+            return buffer.getInt((int) (fpOffsetsAt + (doc + 1) * 4L)) - buffer.getInt((int) (fpOffsetsAt + doc * 4L));
+        }
+
+        @Override
+        public long[] fingerprints(int doc) {
+            int from = buffer.getInt((int) (fpOffsetsAt + doc * 4L));
+            long[] out = new long[buffer.getInt((int) (fpOffsetsAt + (doc + 1) * 4L)) - from];
+            for (int i = 0; i < out.length; i++) out[i] = buffer.getLong((int) (fingerprintsAt + (from + i) * 8L));
+            return out;
+        }
+
+        @Override
+        public void forEachPosting(long fingerprint, IntConsumer action) {
+            forEach(postingKeysAt, postingKeys, postingOffsetsAt, postingDocsAt, fingerprint, action);
+        }
+
+        @Override
+        public void forEachBucketDoc(long bandKey, IntConsumer action) {
+            forEach(bucketKeysAt, bucketKeys, bucketOffsetsAt, bucketDocsAt, bandKey, action);
+        }
+
+        private void forEach(long keysAt, int keyCount, long offsetsAt, long docsAt, long key, IntConsumer action) {
+            int lo = 0;
+            int hi = keyCount - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                long k = buffer.getLong((int) (keysAt + mid * 8L));
+                if (k < key) {
+                    lo = mid + 1;
+                } else if (k > key) {
+                    hi = mid - 1;
+                } else {
+                    int end = buffer.getInt((int) (offsetsAt + (mid + 1) * 4L));
+                    for (int i = buffer.getInt((int) (offsetsAt + mid * 4L)); i < end; i++) {
+                        action.accept(buffer.getInt((int) (docsAt + i * 4L)));
+                    }
+                    return;
+                }
+            }
+        }
+
+        private static long[] sortedKeys(LongPostings table) {
+            long[] keys = new long[table.size()];
+            int count = 0;
+            for (int slot = 0; slot < table.capacity(); slot++) {
+                if (table.usedAt(slot)) keys[count++] = table.keyAt(slot);
+            }
+            Arrays.sort(keys);
+            return keys;
+        }
+
+        private static long totalPostings(LongPostings table) {
+            long total = 0;
+            for (int slot = 0; slot < table.capacity(); slot++) {
+                if (table.usedAt(slot)) total += table.lengthAt(slot);
+            }
+            return total;
+        }
+
+        private static void writeTable(DataOutputStream out, LongPostings table, long[] keys) throws IOException {
+            for (long key : keys) out.writeLong(key);
+            int offset = 0;
+            out.writeInt(0);
+            for (long key : keys) out.writeInt(offset += table.lengthAt(table.find(key)));
+            for (long key : keys) {
+                int slot = table.find(key);
+                int[] docs = table.postingsAt(slot);
+                for (int i = 0, len = table.lengthAt(slot); i < len; i++) out.writeInt(docs[i]);
+            }
+        }
+    }
+
+    // Same tokenization as PlagiarismDetector, but each word n-gram is a rolling 64-bit hash and only the
+    // winnowed minimum of every `window` consecutive grams is kept, so no n-gram String is ever built.
+    // With bands > 0 every document also gets a MinHash signature of bands * rows values, and each band is
+    // bucketed in an LSH table; analyzeDocumentApprox only scores documents that share a bucket with the query.
+    // More rows per band means fewer, closer candidates (faster, lower recall); more bands raises recall.
+    //
+    // The index is a list of sealed segments (memory-mapped files written by flushSegment, in document order)
+    // followed by in-memory segments: one per indexAll batch, built outside the lock and published by reference,
+    // then the active segment that indexDocument appends to. flushSegment writes each in-memory segment to its
+    // own file without holding the lock, and mergeSegments compacts runs of similar-sized sealed segments in the
+    // background from their stored fingerprints, without re-tokenizing.
+    static class FingerprintPlagiarismDetector {
+        private static final long BASE = 0x100000001b3L;
+        private static final int INDEX_LEAF_SIZE = 256;
+        private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)-(\\d+)\\.idx");
+        private static final long DEFAULT_MAX_SEGMENT_BYTES = 1L << 30;
+        private static final long TIER_FLOOR_BYTES = 1L << 20;
+        private static final int MERGE_FACTOR = 4;
+
+        private final int n;
+        private final int window;
+        private final long basePowN;
+        private final int bands;
+        private final int rows;
+        private final long[] minHashSeeds;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final List<MappedSegment> sealed = new ArrayList<>();
+        private final List<MemorySegment> frozen = new ArrayList<>();
+        private final Object flushLock = new Object();
+        private MemorySegment active = new MemorySegment();
+        private CompletableFuture<Void> merging = CompletableFuture.completedFuture(null);
+        private Path dir;
+        private long maxSegmentBytes = DEFAULT_MAX_SEGMENT_BYTES;
+        private int nextSeq;
+
+        FingerprintPlagiarismDetector(int n, int window) {
+            this(n, window, 0, 0);
+        }
+
+        FingerprintPlagiarismDetector(int n, int window, int bands, int rows) {
+            if (n < 1) throw new IllegalArgumentException("n must be at least 1: " + n);
+            if (window < 1) throw new IllegalArgumentException("window must be at least 1: " + window);
+            this.n = n;
+            this.window = window;
+            long p = 1;
+            for (int i = 0; i < n; i++) p *= BASE;
+            this.basePowN = p;
+            this.bands = bands;
+            this.rows = rows;
+            this.minHashSeeds = new long[bands * rows];
+            Random seeds = new Random(0x5eed);
+            for (int i = 0; i < minHashSeeds.length; i++) minHashSeeds[i] = seeds.nextLong();
+        }
+
+        static FingerprintPlagiarismDetector open(Path dir, int n, int window, int bands, int rows) throws IOException {
+            return open(dir, n, window, bands, rows, DEFAULT_MAX_SEGMENT_BYTES);
+        }
+
+        // Opens every segment in dir; later flushSegment/mergeSegments calls write there. mergeSegments never
+        // builds a segment larger than maxSegmentBytes (at most 2 GiB, the limit of one mapping).
+        static FingerprintPlagiarismDetector open(Path dir, int n, int window, int bands, int rows,
+                long maxSegmentBytes) throws IOException {
+            if (maxSegmentBytes <= 0 || maxSegmentBytes > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("maxSegmentBytes must be in (0, 2 GiB): " + maxSegmentBytes);
+            }
+            FingerprintPlagiarismDetector detector = new FingerprintPlagiarismDetector(n, window, bands, rows);
+            detector.dir = Files.createDirectories(dir);
+            detector.maxSegmentBytes = maxSegmentBytes;
+            List<int[]> ranges = new ArrayList<>();
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    String name = file.getFileName().toString();
+                    Matcher m = SEGMENT_NAME.matcher(name);
+                    if (m.matches()) {
+                        ranges.add(new int[] {Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2))});
+                    } else if (name.startsWith("segment-") && name.endsWith(".idx.tmp")) {
+                        Files.delete(file);
+                    }
+                }
+            }
+            ranges.sort((a, b) -> a[0] != b[0] ? Integer.compare(a[0], b[0]) : Integer.compare(b[1], a[1]));
+            for (int[] range : ranges) {
+                // A merge that crashed before deleting its inputs leaves segments covered by the merged one,
+                // which was forced to disk before it was renamed into place.
+                if (range[0] < detector.nextSeq) {
+                    Files.deleteIfExists(segmentPath(dir, range[0], range[1]));
+                    continue;
+                }
+                detector.sealed.add(new MappedSegment(segmentPath(dir, range[0], range[1]), range[0], range[1],
+                        detector.config()));
+                detector.nextSeq = range[1] + 1;
+            }
+            return detector;
+        }
+
+        public void indexDocument(String docId, String content) {
+            long[] fingerprints = fingerprint(content);
+            long[] bandKeys = lshBandKeys(fingerprints);
+            lock.writeLock().lock();
+            try {
+                active.add(docId, fingerprints, bandKeys);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        // Tokenizes and hashes in parallel on the common fork-join pool, builds the batch's postings in one pass
+        // without holding the lock, then publishes it after the active segment so stream order is preserved.
+        public void indexAll(Stream<Document> documents) {
+            Document[] docs = documents.toArray(Document[]::new);
+            if (docs.length == 0) return;
+            long[][] fingerprints = new long[docs.length][];
+            long[][] bandKeys = new long[docs.length][];
+            ForkJoinPool.commonPool().invoke(new IndexTask(docs, fingerprints, bandKeys, 0, docs.length));
+            MemorySegment built = new MemorySegment();
+            for (int i = 0; i < docs.length; i++) built.add(docs[i].id(), fingerprints[i], bandKeys[i]);
+            lock.writeLock().lock();
+            try {
+                if (active.docCount() > 0) frozen.add(active);
+                frozen.add(built);
+                active = new MemorySegment();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        // Writes every in-memory segment to its own segment file and swaps in the memory-mapped views. Searches
+        // keep reading the in-memory copies while the files are written; the lock is only held to hand over.
+        public void flushSegment() throws IOException {
+            requireDirectory();
+            synchronized (flushLock) {
+                List<MemorySegment> pending;
+                int firstSeq;
+                lock.writeLock().lock();
+                try {
+                    if (active.docCount() > 0) {
+                        frozen.add(active);
+                        active = new MemorySegment();
+                    }
+                    pending = List.copyOf(frozen);
+                    firstSeq = nextSeq;
+                    nextSeq += pending.size();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                if (pending.isEmpty()) return;
+
+                List<MappedSegment> written = new ArrayList<>(pending.size());
+                for (int i = 0; i < pending.size(); i++) {
+                    int seq = firstSeq + i;
+                    Path file = segmentPath(dir, seq, seq);
+                    MappedSegment.write(file, pending.get(i), config());
+                    written.add(new MappedSegment(file, seq, seq, config()));
+                }
+                lock.writeLock().lock();
+                try {
+                    frozen.removeAll(pending);
+                    sealed.addAll(written);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }
+
+        // Size-tiered: merges the first run of at least MERGE_FACTOR adjacent sealed segments in the same size tier
+        // (tiers are powers of MERGE_FACTOR above TIER_FLOOR_BYTES), taking as many as fit under maxSegmentBytes,
+        // in the background; searches keep using the old segments until the merged file is swapped in. Segments
+        // must be adjacent because a merged file covers a contiguous sequence range. At most one merge runs at a
+        // time: while one is in flight its future is returned instead of starting another over the same inputs.
+        public synchronized CompletableFuture<Void> mergeSegments() {
+            requireDirectory();
+            if (!merging.isDone()) return merging;
+            List<MappedSegment> inputs;
+            lock.readLock().lock();
+            try {
+                inputs = pickMerge(sealed);
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (inputs.isEmpty()) return CompletableFuture.completedFuture(null);
+            merging = CompletableFuture.runAsync(() -> {
+                try {
+                    merge(inputs);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            return merging;
+        }
+
+        public List<MatchResult> analyzeDocument(String content) {
+            long[] query = fingerprint(content);
+            lock.readLock().lock();
+            try {
+                List<MatchResult> results = new ArrayList<>();
+                IntCounts counts = new IntCounts(query.length);
+                for (IndexSegment segment : segments()) {
+                    counts.clear();
+                    IntList touched = new IntList();
+                    for (long fp : query) {
+                        segment.forEachPosting(fp, doc -> {
+                            if (counts.increment(doc) == 1) touched.add(doc);
+                        });
+                    }
+                    for (int i = 0; i < touched.size(); i++) {
+                        int doc = touched.get(i);
+                        int shared = counts.get(doc);
+                        int unionSize = query.length + segment.fingerprintCount(doc) - shared;
+                        double similarity = unionSize == 0 ? 0.0 : (100.0 * shared / unionSize);
+                        results.add(new MatchResult(segment.docId(doc), shared, similarity));
+                    }
+                }
+                results.sort((a, b) -> Double.compare(b.similarityPercent(), a.similarityPercent()));
+                return results;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        // Exact Jaccard over the LSH candidate set only; without LSH bands it is the full analyzeDocument scan.
+        public List<MatchResult> analyzeDocumentApprox(String content) {
+            if (bands == 0) return analyzeDocument(content);
+            long[] query = fingerprint(content);
+            if (query.length == 0) return List.of();
+            long[] bandKeys = lshBandKeys(query);
+            lock.readLock().lock();
+            try {
+                List<MatchResult> results = new ArrayList<>();
+                IntCounts seen = new IntCounts(bandKeys.length);
+                for (IndexSegment segment : segments()) {
+                    seen.clear();
+                    for (long key : bandKeys) {
+                        segment.forEachBucketDoc(key, doc -> {
+                            if (seen.increment(doc) > 1) return;
+                            long[] target = segment.fingerprints(doc);
+                            int shared = intersectionSize(query, target);
+                            if (shared == 0) return;
+                            int unionSize = query.length + target.length - shared;
+                            results.add(new MatchResult(segment.docId(doc), shared, 100.0 * shared / unionSize));
+                        });
+                    }
+                }
+                results.sort((a, b) -> Double.compare(b.similarityPercent(), a.similarityPercent()));
+                return results;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        int indexedFingerprints() {
+            lock.readLock().lock();
+            try {
+                int keys = active.postings.size();
+                for (MemorySegment segment : frozen) keys += segment.postings.size();
+                return keys;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        int segmentCount() {
+            lock.readLock().lock();
+            try {
+                return sealed.size();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        // Fills fingerprints[i] and bandKeys[i] for docs[from, to); never serialized.
+        @SuppressWarnings("serial")
+        private final class IndexTask extends RecursiveAction {
+            private final Document[] docs;
+            private final long[][] fingerprints;
+            private final long[][] bandKeys;
+            private final int from;
+            private final int to;
+
+            IndexTask(Document[] docs, long[][] fingerprints, long[][] bandKeys, int from, int to) {
+                this.docs = docs;
+                this.fingerprints = fingerprints;
+                this.bandKeys = bandKeys;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= INDEX_LEAF_SIZE) {
+                    for (int i = from; i < to; i++) {
+                        fingerprints[i] = fingerprint(docs[i].content());
+                        bandKeys[i] = lshBandKeys(fingerprints[i]);
+                    }
+                    return;
+                }
+                int mid = (from + to) >>> 1;
+                invokeAll(new IndexTask(docs, fingerprints, bandKeys, from, mid),
+                        new IndexTask(docs, fingerprints, bandKeys, mid, to));
+            }
+        }
+
+        private void merge(List<MappedSegment> inputs) throws IOException {
+            MemorySegment combined = new MemorySegment();
+            for (MappedSegment segment : inputs) {
+                for (int doc = 0; doc < segment.docCount(); doc++) {
+                    long[] fingerprints = segment.fingerprints(doc);
+                    combined.add(segment.docId(doc), fingerprints, lshBandKeys(fingerprints));
+                }
+            }
+            int first = inputs.get(0).firstSeq;
+            int last = inputs.get(inputs.size() - 1).lastSeq;
+            Path file = segmentPath(dir, first, last);
+            MappedSegment.write(file, combined, config());
+            MappedSegment merged = new MappedSegment(file, first, last, config());
+
+            lock.writeLock().lock();
+            try {
+                // Flushes only append and merges never overlap, so the inputs are still a contiguous run.
+                int at = sealed.indexOf(inputs.get(0));
+                sealed.removeAll(inputs);
+                sealed.add(at, merged);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            for (MappedSegment segment : inputs) {
+                if (segment.firstSeq != first || segment.lastSeq != last) {
+                    Files.deleteIfExists(segmentPath(dir, segment.firstSeq, segment.lastSeq));
+                }
+            }
+        }
+
+        private List<MappedSegment> pickMerge(List<MappedSegment> segments) {
+            for (int start = 0; start < segments.size(); start++) {
+                int tier = tier(segments.get(start));
+                long bytes = 0;
+                int end = start;
+                // The merged postings and buckets are never larger than the inputs', so the sum bounds its size.
+                while (end < segments.size() && tier(segments.get(end)) == tier
+                        && bytes + segments.get(end).bytes() <= maxSegmentBytes) {
+                    bytes += segments.get(end++).bytes();
+                }
+                if (end - start >= MERGE_FACTOR) return List.copyOf(segments.subList(start, end));
+            }
+            return List.of();
+        }
+
+        private static int tier(MappedSegment segment) {
+            int log2 = 63 - Long.numberOfLeadingZeros(Math.max(1, segment.bytes() / TIER_FLOOR_BYTES));
+            return log2 / Integer.numberOfTrailingZeros(MERGE_FACTOR);
+        }
+
+        private List<IndexSegment> segments() {
+            List<IndexSegment> all = new ArrayList<>(sealed.size() + frozen.size() + 1);
+            all.addAll(sealed);
+            all.addAll(frozen);
+            all.add(active);
+            return all;
+        }
+
+        private int[] config() {
+            return new int[] {n, window, bands, rows};
+        }
+
+        private void requireDirectory() {
+            if (dir == null) throw new IllegalStateException("Detector was not opened on an index directory");
+        }
+
+        private static Path segmentPath(Path dir, int firstSeq, int lastSeq) {
+            return dir.resolve(String.format("segment-%08d-%08d.idx", firstSeq, lastSeq));
+        }
+
+        private long[] lshBandKeys(long[] fingerprints) {
+            if (fingerprints.length == 0) return new long[0];
+            long[] keys = new long[bands];
+            for (int b = 0; b < bands; b++) {
+                long key = b * 0x9E3779B97F4A7C15L;
+                for (int r = 0; r < rows; r++) {
+                    long seed = minHashSeeds[b * rows + r];
+                    long min = Long.MAX_VALUE;
+                    for (long fp : fingerprints) min = Math.min(min, LongPostings.mix(fp ^ seed));
+                    key = (key ^ min) * BASE;
+                }
+                keys[b] = LongPostings.mix(key);
+            }
+            return keys;
+        }
+
+        private static int intersectionSize(long[] a, long[] b) {
+            int i = 0;
+            int j = 0;
+            int shared = 0;
+            while (i < a.length && j < b.length) {
+                if (a[i] < b[j]) {
+                    i++;
+                } else if (a[i] > b[j]) {
+                    j++;
+                } else {
+                    shared++;
+                    i++;
+                    j++;
+                }
+            }
+            return shared;
+        }
+
+        // Sorted, de-duplicated winnowed fingerprints of the document's word n-grams.
+        long[] fingerprint(String content) {
+            long[] words = new long[16];
+            int wordCount = 0;
+            long h = 0;
+            boolean inWord = false;
+            for (int i = 0, len = content.length(); i <= len; i++) {
+                char c = i < len ? Character.toLowerCase(content.charAt(i)) : ' ';
+                if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+                    if (!inWord) h = 0xcbf29ce484222325L;
+                    h = (h ^ c) * 0x100000001b3L;
+                    inWord = true;
+                } else if (inWord) {
+                    if (wordCount == words.length) words = Arrays.copyOf(words, wordCount * 2);
+                    words[wordCount++] = LongPostings.mix(h);
+                    inWord = false;
+                }
+            }
+
+            int gramCount = wordCount - n + 1;
+            if (gramCount <= 0) return new long[0];
+            long[] grams = new long[gramCount];
+            long rolling = 0;
+            for (int i = 0; i < wordCount; i++) {
+                rolling = rolling * BASE + words[i];
+                if (i >= n) rolling -= words[i - n] * basePowN;
+                if (i >= n - 1) grams[i - n + 1] = rolling;
+            }
+            return winnow(grams);
+        }
+
+        private long[] winnow(long[] grams) {
+            int w = Math.min(window, grams.length);
+            long[] picked = new long[grams.length - w + 1];
+            int count = 0;
+            int minPos = -1;
+            for (int start = 0; start + w <= grams.length; start++) {
+                if (minPos < start) {
+                    minPos = start;
+                    for (int i = start + 1; i < start + w; i++) {
+                        if (grams[i] <= grams[minPos]) minPos = i;
+                    }
+                    picked[count++] = grams[minPos];
+                } else if (grams[start + w - 1] <= grams[minPos]) {
+                    minPos = start + w - 1;
+                    picked[count++] = grams[minPos];
+                }
+            }
+            long[] out = Arrays.copyOf(picked, count);
+            Arrays.sort(out);
+            int unique = 0;
+            for (int i = 0; i < out.length; i++) {
+                if (i == 0 || out[i] != out[i - 1]) out[unique++] = out[i];
+            }
+            return Arrays.copyOf(out, unique);
+        }
+    }
+
+    static void runIndexBenchmark() {
+        Random random = new Random(42);
+        String[] vocabulary = new String[5_000];
+        for (int i = 0; i < vocabulary.length; i++) vocabulary[i] = "w" + Integer.toString(i * 7919, 36);
+        String[] corpus = new String[5_000];
+        for (int d = 0; d < corpus.length; d++) {
+            StringBuilder sb = new StringBuilder();
+            for (int w = 0; w < 400; w++) sb.append(vocabulary[random.nextInt(vocabulary.length)]).append(' ');
+            corpus[d] = sb.toString();
+        }
+        String query = corpus[17].substring(0, corpus[17].length() / 2) + corpus[4242];
+
+        PlagiarismDetector exact = new PlagiarismDetector(5);
+        FingerprintPlagiarismDetector hashed = new FingerprintPlagiarismDetector(5, 4);
+        long t0 = System.nanoTime();
+        for (int d = 0; d < corpus.length; d++) exact.indexDocument("doc" + d, corpus[d]);
+        long t1 = System.nanoTime();
+        for (int d = 0; d < corpus.length; d++) hashed.indexDocument("doc" + d, corpus[d]);
+        long t2 = System.nanoTime();
+        List<MatchResult> exactTop = exact.analyzeDocument(query);
+        long t3 = System.nanoTime();
+        List<MatchResult> hashedTop = hashed.analyzeDocument(query);
+        long t4 = System.nanoTime();
+        System.out.printf("exact:       index %.0fms, analyze %.2fms, top=%s%n",
+                (t1 - t0) / 1e6, (t3 - t2) / 1e6, exactTop.subList(0, 2));
+        System.out.printf("fingerprint: index %.0fms, analyze %.2fms, %d postings keys, top=%s%n",
+                (t2 - t1) / 1e6, (t4 - t3) / 1e6, hashed.indexedFingerprints(), hashedTop.subList(0, 2));
+    }
+
+    // Recall@k of the LSH path against the exact fingerprint path, for near-duplicates of random corpus documents.
+    static void runLshRecallBenchmark() {
+        Random random = new Random(7);
+        String[] vocabulary = new String[5_000];
+        for (int i = 0; i < vocabulary.length; i++) vocabulary[i] = "w" + Integer.toString(i * 7919, 36);
+        String[][] corpus = new String[5_000][];
+        for (int d = 0; d < corpus.length; d++) {
+            corpus[d] = new String[300];
+            for (int w = 0; w < corpus[d].length; w++) corpus[d][w] = vocabulary[random.nextInt(vocabulary.length)];
+        }
+        // Near-duplicates of 50 documents with ~10% of the words replaced.
+        String[] queries = new String[50];
+        for (int q = 0; q < queries.length; q++) {
+            String[] words = corpus[random.nextInt(corpus.length)].clone();
+            for (int i = 0; i < words.length / 10; i++) words[random.nextInt(words.length)] = "edit" + i;
+            queries[q] = String.join(" ", words);
+        }
+
+        int k = 5;
+        int[][] settings = {{10, 2}, {20, 2}, {20, 3}, {32, 4}};
+        System.out.printf("%-12s %10s %14s %14s%n", "bands x rows", "recall@" + k, "exact ms/q", "lsh ms/q");
+        for (int[] setting : settings) {
+            FingerprintPlagiarismDetector detector = new FingerprintPlagiarismDetector(5, 4, setting[0], setting[1]);
+            for (int d = 0; d < corpus.length; d++) detector.indexDocument("doc" + d, String.join(" ", corpus[d]));
+            long exactNanos = 0;
+            long lshNanos = 0;
+            int found = 0;
+            int expected = 0;
+            for (String query : queries) {
+                long t0 = System.nanoTime();
+                List<MatchResult> exact = detector.analyzeDocument(query);
+                long t1 = System.nanoTime();
+                List<MatchResult> approx = detector.analyzeDocumentApprox(query);
+                long t2 = System.nanoTime();
+                exactNanos += t1 - t0;
+                lshNanos += t2 - t1;
+                Set<String> approxTop = new HashSet<>();
+                for (int i = 0; i < Math.min(k, approx.size()); i++) approxTop.add(approx.get(i).documentId());
+                for (int i = 0; i < Math.min(k, exact.size()); i++) {
+                    // Only count exact hits that are actual near-duplicates rather than noise matches.
+                    if (exact.get(i).similarityPercent() < 20.0) continue;
+                    expected++;
+                    if (approxTop.contains(exact.get(i).documentId())) found++;
+                }
+            }
+            System.out.printf("%-12s %10.2f %14.3f %14.3f%n", setting[0] + " x " + setting[1],
+                    expected == 0 ? 1.0 : (double) found / expected,
+                    exactNanos / 1e6 / queries.length, lshNanos / 1e6 / queries.length);
+        }
+    }
+
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("bench")) {
+            runIndexBenchmark();
+            runLshRecallBenchmark();
+            return;
+        }
+
         PlagiarismDetector detector = new PlagiarismDetector(5);
         detector.indexDocument("essay_089", "data structures and algorithms are core in computer science education for all students");
         detector.indexDocument("essay_092", "hash tables and algorithms are core in computer science education for all learners");
@@ -76,5 +1092,13 @@ public class Problem4PlagiarismDetector {
             System.out.printf("%s -> %d matching n-grams, similarity=%.1f%% (%s)%n",
                     r.documentId(), r.matchingNgrams(), r.similarityPercent(), label);
         }
+
+        FingerprintPlagiarismDetector fingerprints = new FingerprintPlagiarismDetector(5, 1);
+        fingerprints.indexDocument("essay_089", "data structures and algorithms are core in computer science education for all students");
+        fingerprints.indexDocument("essay_092", "hash tables and algorithms are core in computer science education for all learners");
+        for (MatchResult r : fingerprints.analyzeDocument("hash tables and algorithms are core in computer science education for all students today")) {
+            System.out.printf("[fingerprint] %s -> %d matching n-grams, similarity=%.1f%%%n",
+                    r.documentId(), r.matchingNgrams(), r.similarityPercent());
+        }
     }
 }
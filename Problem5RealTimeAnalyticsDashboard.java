@@ -1,44 +1,888 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 public class Problem5RealTimeAnalyticsDashboard {
     record Event(String url, String userId, String source) {}
     record PageStat(String pageUrl, long views, int uniqueUsers) {}
     record Dashboard(List<PageStat> topPages, Map<String, Long> sourceDistribution) {}
 
+    interface UniqueCounter {
+        void add(String userId);
+
+        // Folds other's observations into this counter; both must be the same kind and precision.
+        void merge(UniqueCounter other);
+
+        long count();
+    }
+
+    static class ExactUniqueCounter implements UniqueCounter {
+        private final Set<String> users = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public void add(String userId) {
+            users.add(userId);
+        }
+
+        @Override
+        public void merge(UniqueCounter other) {
+            if (!(other instanceof ExactUniqueCounter exact)) throw new IllegalArgumentException("Cannot merge " + other);
+            users.addAll(exact.users);
+        }
+
+        @Override
+        public long count() {
+            return users.size();
+        }
+    }
+
+    // HyperLogLog with 2^precision one-byte registers (standard error ~1.04 / sqrt(2^precision)). Small counters
+    // stay in a sparse index->rank hash table and switch to the dense register array once that would be larger,
+    // so the long tail of rarely visited pages costs a few dozen bytes each. Dense updates are lock-free CAS-max.
+    static class HyperLogLog implements UniqueCounter {
+        private static final VarHandle REGISTER = MethodHandles.arrayElementVarHandle(byte[].class);
+
+        private final int precision;
+        private final int m;
+        private int[] sparse = new int[8];
+        private int sparseSize;
+        private volatile byte[] dense;
+
+        HyperLogLog(int precision) {
+            if (precision < 4 || precision > 18) throw new IllegalArgumentException("precision must be in [4, 18]");
+            this.precision = precision;
+            this.m = 1 << precision;
+        }
+
+        @Override
+        public void add(String userId) {
+            long h = hash64(userId);
+            int index = (int) (h >>> (64 - precision));
+            int rank = Long.numberOfLeadingZeros((h << precision) | (1L << (precision - 1))) + 1;
+            update(index, rank);
+        }
+
+        @Override
+        public void merge(UniqueCounter other) {
+            if (!(other instanceof HyperLogLog hll) || hll.precision != precision) {
+                throw new IllegalArgumentException("Cannot merge " + other + " into HLL with precision " + precision);
+            }
+            byte[] otherDense;
+            int[] otherSparse;
+            synchronized (hll) {
+                otherDense = hll.dense;
+                otherSparse = otherDense == null ? hll.sparse.clone() : null;
+            }
+            if (otherDense != null) {
+                for (int i = 0; i < m; i++) {
+                    if (otherDense[i] != 0) update(i, otherDense[i]);
+                }
+            } else {
+                for (int entry : otherSparse) {
+                    if (entry != 0) update(entry >>> 8, entry & 0xFF);
+                }
+            }
+        }
+
+        @Override
+        public long count() {
+            byte[] d = dense;
+            if (d == null) {
+                synchronized (this) {
+                    d = dense;
+                    if (d == null) return Math.round(m * Math.log((double) m / (m - sparseSize)));
+                }
+            }
+            double sum = 0;
+            int zeros = 0;
+            for (int i = 0; i < m; i++) {
+                int r = (byte) REGISTER.getVolatile(d, i);
+                sum += 1.0 / (1L << r);
+                if (r == 0) zeros++;
+            }
+            double alpha = 0.7213 / (1 + 1.079 / m);
+            double estimate = alpha * m * m / sum;
+            if (estimate <= 2.5 * m && zeros > 0) estimate = m * Math.log((double) m / zeros);
+            return Math.round(estimate);
+        }
+
+        int memoryBytes() {
+            byte[] d = dense;
+            return d != null ? d.length : sparse.length * Integer.BYTES;
+        }
+
+        private void update(int index, int rank) {
+            byte[] d = dense;
+            if (d == null) {
+                synchronized (this) {
+                    d = dense;
+                    if (d == null) {
+                        updateSparse(index, rank);
+                        return;
+                    }
+                }
+            }
+            while (true) {
+                byte current = (byte) REGISTER.getVolatile(d, index);
+                if (current >= rank || REGISTER.compareAndSet(d, index, current, (byte) rank)) return;
+            }
+        }
+
+        // Sparse entries are (index << 8 | rank); rank >= 1 so 0 marks an empty slot.
+        private void updateSparse(int index, int rank) {
+            int mask = sparse.length - 1;
+            int slot = index & mask;
+            while (sparse[slot] != 0 && sparse[slot] >>> 8 != index) slot = (slot + 1) & mask;
+            if (sparse[slot] != 0) {
+                if ((sparse[slot] & 0xFF) < rank) sparse[slot] = index << 8 | rank;
+                return;
+            }
+            sparse[slot] = index << 8 | rank;
+            sparseSize++;
+            if (sparseSize * 2 > sparse.length) {
+                if (sparse.length * 2 * Integer.BYTES > m) {
+                    toDense();
+                } else {
+                    int[] old = sparse;
+                    sparse = new int[old.length * 2];
+                    sparseSize = 0;
+                    for (int entry : old) {
+                        if (entry != 0) updateSparse(entry >>> 8, entry & 0xFF);
+                    }
+                }
+            }
+        }
+
+        private void toDense() {
+            byte[] d = new byte[m];
+            for (int entry : sparse) {
+                if (entry != 0) d[entry >>> 8] = (byte) (entry & 0xFF);
+            }
+            sparse = new int[0];
+            dense = d;
+        }
+
+        private static long hash64(String s) {
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < s.length(); i++) h = (h ^ s.charAt(i)) * 0x100000001b3L;
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            return h ^ (h >>> 33);
+        }
+    }
+
+    // Bounded set of a bucket's most viewed pages. Pages already tracked and pages at or below the current floor
+    // return without locking, so only the rare event that pushes a new page into the set pays for eviction.
+    static class TopPages {
+        private final Set<String> members = ConcurrentHashMap.newKeySet();
+        private final int capacity;
+        private volatile long floor;
+
+        TopPages(int capacity) {
+            this.capacity = capacity;
+        }
+
+        void offer(String url, long views, Map<String, LongAdder> pageViews) {
+            if (views <= floor || members.contains(url)) return;
+            synchronized (this) {
+                if (!members.add(url) || members.size() <= capacity) return;
+                String min = null;
+                long minViews = Long.MAX_VALUE;
+                for (String member : members) {
+                    long v = pageViews.get(member).sum();
+                    if (v < minViews) {
+                        min = member;
+                        minViews = v;
+                    }
+                }
+                members.remove(min);
+                floor = minViews;
+            }
+        }
+
+        Set<String> members() {
+            return members;
+        }
+    }
+
+    static class Bucket {
+        final long epoch;
+        final ConcurrentHashMap<String, LongAdder> pageViews = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<String, UniqueCounter> uniqueVisitors = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<String, LongAdder> sourceCounts = new ConcurrentHashMap<>();
+        final TopPages topPages = new TopPages(AnalyticsEngine.CANDIDATES_PER_BUCKET);
+        private final Supplier<UniqueCounter> uniqueCounters;
+
+        Bucket(long epoch, Supplier<UniqueCounter> uniqueCounters) {
+            this.epoch = epoch;
+            this.uniqueCounters = uniqueCounters;
+        }
+
+        void record(Event event) {
+            LongAdder views = pageViews.computeIfAbsent(event.url(), u -> new LongAdder());
+            views.increment();
+            topPages.offer(event.url(), views.sum(), pageViews);
+            uniqueVisitors.computeIfAbsent(event.url(), u -> uniqueCounters.get()).add(event.userId());
+            sourceCounts.computeIfAbsent(event.source(), s -> new LongAdder()).increment();
+        }
+    }
+
+    // Fixed ring of buckets, one per `unitMillis`. A slot is reused by CAS-ing in a fresh bucket once the clock has
+    // moved past the epoch it holds, so stale data is dropped on rotation and the ring never grows. A writer that
+    // read the clock before its slot was rotated to a newer epoch gets null and drops the event, rather than
+    // counting it in a bucket for a different interval.
+    static class BucketRing {
+        private final AtomicReferenceArray<Bucket> slots;
+        private final long unitMillis;
+        private final Supplier<UniqueCounter> uniqueCounters;
+
+        BucketRing(int slotCount, long unitMillis, Supplier<UniqueCounter> uniqueCounters) {
+            this.slots = new AtomicReferenceArray<>(slotCount);
+            this.unitMillis = unitMillis;
+            this.uniqueCounters = uniqueCounters;
+        }
+
+        // floorDiv/floorMod keep epochs and slot indexes consistent for clocks that start below zero.
+        Bucket current(long nowMillis) {
+            long epoch = Math.floorDiv(nowMillis, unitMillis);
+            int index = Math.floorMod(epoch, slots.length());
+            while (true) {
+                Bucket bucket = slots.get(index);
+                if (bucket != null && bucket.epoch == epoch) return bucket;
+                if (bucket != null && bucket.epoch > epoch) return null;
+                Bucket fresh = new Bucket(epoch, uniqueCounters);
+                if (slots.compareAndSet(index, bucket, fresh)) return fresh;
+            }
+        }
+
+        // Buckets covering the last `units` units up to and including the current one.
+        void forEachRecent(long nowMillis, int units, Consumer<Bucket> action) {
+            long epoch = Math.floorDiv(nowMillis, unitMillis);
+            for (int i = 0; i < Math.min(units, slots.length()); i++) {
+                Bucket bucket = slots.get(Math.floorMod(epoch - i, slots.length()));
+                if (bucket != null && bucket.epoch == epoch - i) action.accept(bucket);
+            }
+        }
+
+        int capacity() {
+            return slots.length();
+        }
+    }
+
     static class AnalyticsEngine {
-        private final ConcurrentHashMap<String, LongAdder> pageViews = new ConcurrentHashMap<>();
-        private final ConcurrentHashMap<String, Set<String>> uniqueVisitors = new ConcurrentHashMap<>();
-        private final ConcurrentHashMap<String, LongAdder> sourceCounts = new ConcurrentHashMap<>();
+        static final Duration MAX_WINDOW = Duration.ofHours(1);
+        static final Duration DEFAULT_FRESHNESS = Duration.ofSeconds(1);
+        static final int DEFAULT_HLL_PRECISION = 12;
+        static final int TOP_PAGES = 10;
+        static final int CANDIDATES_PER_BUCKET = 4 * TOP_PAGES;
+
+        private record CachedDashboard(Dashboard dashboard, long computedAtMillis) {}
+
+        private final BucketRing seconds;
+        private final BucketRing minutes;
+        private final LongSupplier clockMillis;
+        private final Supplier<UniqueCounter> uniqueCounters;
+        private final long freshnessMillis;
+        private final ConcurrentHashMap<Duration, CachedDashboard> cache = new ConcurrentHashMap<>();
+
+        AnalyticsEngine() {
+            this(System::currentTimeMillis);
+        }
+
+        AnalyticsEngine(LongSupplier clockMillis) {
+            this(clockMillis, () -> new HyperLogLog(DEFAULT_HLL_PRECISION));
+        }
+
+        // Pass ExactUniqueCounter::new for exact per-page unique counts at the cost of one set entry per user.
+        AnalyticsEngine(LongSupplier clockMillis, Supplier<UniqueCounter> uniqueCounters) {
+            this(clockMillis, uniqueCounters, DEFAULT_FRESHNESS);
+        }
+
+        // Dashboards younger than `freshness` are served from cache, so concurrent pollers share one computation;
+        // Duration.ZERO recomputes on every call. The cache holds one entry per distinct bucketed window, so at most
+        // 60 second-sized and 60 minute-sized entries however many window lengths callers ask for.
+        AnalyticsEngine(LongSupplier clockMillis, Supplier<UniqueCounter> uniqueCounters, Duration freshness) {
+            this.clockMillis = clockMillis;
+            this.uniqueCounters = uniqueCounters;
+            this.freshnessMillis = freshness.toMillis();
+            this.seconds = new BucketRing(60, 1_000, uniqueCounters);
+            this.minutes = new BucketRing(60, 60_000, uniqueCounters);
+        }
 
         void processEvent(Event event) {
-            pageViews.computeIfAbsent(event.url(), u -> new LongAdder()).increment();
-            uniqueVisitors.computeIfAbsent(event.url(), u -> ConcurrentHashMap.newKeySet()).add(event.userId());
-            sourceCounts.computeIfAbsent(event.source(), s -> new LongAdder()).increment();
+            long now = clockMillis.getAsLong();
+            Bucket second = seconds.current(now);
+            if (second != null) second.record(event);
+            Bucket minute = minutes.current(now);
+            if (minute != null) minute.record(event);
         }
 
         Dashboard getDashboard() {
-            List<PageStat> topPages = pageViews.entrySet().stream()
-                    .map(e -> new PageStat(
-                            e.getKey(),
-                            e.getValue().longValue(),
-                            uniqueVisitors.getOrDefault(e.getKey(), Set.of()).size()))
-                    .sorted(Comparator.comparingLong(PageStat::views).reversed())
-                    .limit(10)
-                    .toList();
+            return getDashboard(MAX_WINDOW);
+        }
+
+        // Windows up to a minute are answered from one-second buckets, longer ones (up to an hour) from one-minute
+        // buckets, where the current partial minute counts as a whole one.
+        Dashboard getDashboard(Duration window) {
+            long now = clockMillis.getAsLong();
+            Duration span = bucketed(window);
+            if (freshnessMillis <= 0) return computeDashboard(span, now);
+            return cache.compute(span, (w, cached) -> cached != null && now - cached.computedAtMillis() < freshnessMillis
+                    ? cached
+                    : new CachedDashboard(computeDashboard(w, now), now)).dashboard();
+        }
+
+        // The window as a whole number of ring units: 1-60 seconds, or 2-60 minutes, rounding up.
+        private Duration bucketed(Duration window) {
+            long windowSeconds = Math.max(1, window.toSeconds());
+            if (windowSeconds <= seconds.capacity()) return Duration.ofSeconds(windowSeconds);
+            return Duration.ofMinutes(Math.min(minutes.capacity(), (windowSeconds + 59) / 60));
+        }
 
-            Map<String, Long> sourceDistribution = sourceCounts.entrySet().stream()
-                    .collect(java.util.stream.Collectors.toMap(Map.Entry::getKey, e -> e.getValue().longValue()));
+        // Only pages that made some bucket's candidate set are ranked, so a computation costs O(window buckets x
+        // candidates) map lookups plus TOP_PAGES unique-counter merges per bucket, independent of the number of
+        // distinct URLs but not O(TOP_PAGES); polls within the freshness interval read the cached K entries instead.
+        // A page that never ranks in any single bucket but would win on its window total can be missed; the slack
+        // over TOP_PAGES keeps that rare.
+        private Dashboard computeDashboard(Duration window, long now) {
+            List<Bucket> buckets = new ArrayList<>();
+            Set<String> candidates = new HashSet<>();
+            Map<String, Long> sourceDistribution = new HashMap<>();
+            long windowSeconds = window.toSeconds();
+            BucketRing ring = windowSeconds <= seconds.capacity() ? seconds : minutes;
+            int units = (int) (ring == seconds ? windowSeconds : window.toMinutes());
+
+            ring.forEachRecent(now, units, bucket -> {
+                buckets.add(bucket);
+                candidates.addAll(bucket.topPages.members());
+                bucket.sourceCounts.forEach((source, count) -> sourceDistribution.merge(source, count.longValue(), Long::sum));
+            });
+
+            Map<String, Long> views = new HashMap<>();
+            for (String url : candidates) {
+                long total = 0;
+                for (Bucket bucket : buckets) {
+                    LongAdder count = bucket.pageViews.get(url);
+                    if (count != null) total += count.sum();
+                }
+                views.put(url, total);
+            }
+
+            List<PageStat> topPages = views.entrySet().stream()
+                    .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                    .limit(TOP_PAGES)
+                    .map(e -> new PageStat(e.getKey(), e.getValue(), (int) uniqueVisitors(e.getKey(), buckets)))
+                    .toList();
 
             return new Dashboard(topPages, sourceDistribution);
         }
+
+        private long uniqueVisitors(String url, List<Bucket> buckets) {
+            UniqueCounter merged = uniqueCounters.get();
+            for (Bucket bucket : buckets) {
+                UniqueCounter users = bucket.uniqueVisitors.get(url);
+                if (users != null) merged.merge(users);
+            }
+            return merged.count();
+        }
+    }
+
+    // Bounded multi-producer single-consumer ring. Producers claim a sequence by CAS on tail, write the item's
+    // timestamp and publish the item with a release store; the single consumer clears the slot before advancing
+    // head, so a slot is only reused once it has been read.
+    static class MpscRing<T> {
+        private final AtomicReferenceArray<T> slots;
+        private final long[] stamps;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        private volatile long head;
+        private long polledStamp;
+
+        MpscRing(int capacity) {
+            if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("capacity must be a power of two");
+            this.slots = new AtomicReferenceArray<>(capacity);
+            this.stamps = new long[capacity];
+            this.mask = capacity - 1;
+        }
+
+        boolean offer(T item, long stamp) {
+            while (true) {
+                long t = tail.get();
+                if (t - head >= slots.length()) return false;
+                if (tail.compareAndSet(t, t + 1)) {
+                    stamps[(int) t & mask] = stamp;
+                    slots.lazySet((int) t & mask, item);
+                    return true;
+                }
+            }
+        }
+
+        // Consumer thread only. Returns null when empty or when the next slot is claimed but not yet published;
+        // the stamp the item was offered with is then available from polledStamp().
+        T poll() {
+            long h = head;
+            int i = (int) h & mask;
+            T item = slots.get(i);
+            if (item == null) return null;
+            polledStamp = stamps[i];
+            slots.lazySet(i, null);
+            head = h + 1;
+            return item;
+        }
+
+        long polledStamp() {
+            return polledStamp;
+        }
+
+        long head() {
+            return head;
+        }
+
+        long tail() {
+            return tail.get();
+        }
+
+        int size() {
+            return (int) Math.max(0, tail.get() - head);
+        }
+    }
+
+    // Shard-private bucket: only the owning shard thread reads or writes it, so plain maps with mutable long[1]
+    // counters replace the concurrent maps and adders of Bucket.
+    static class LocalBucket {
+        final long epoch;
+        final Map<String, long[]> pageViews = new HashMap<>();
+        final Map<String, UniqueCounter> uniqueVisitors = new HashMap<>();
+        final Map<String, long[]> sourceCounts = new HashMap<>();
+        final Set<String> candidates = new HashSet<>();
+        private long floor;
+
+        LocalBucket(long epoch) {
+            this.epoch = epoch;
+        }
+
+        void record(Event event, Supplier<UniqueCounter> uniqueCounters) {
+            String url = event.url();
+            long[] views = pageViews.get(url);
+            if (views == null) pageViews.put(url, views = new long[1]);
+            long v = ++views[0];
+            if (v > floor && candidates.add(url) && candidates.size() > AnalyticsEngine.CANDIDATES_PER_BUCKET) {
+                String min = null;
+                long minViews = Long.MAX_VALUE;
+                for (String candidate : candidates) {
+                    long c = pageViews.get(candidate)[0];
+                    if (c < minViews) {
+                        min = candidate;
+                        minViews = c;
+                    }
+                }
+                candidates.remove(min);
+                floor = minViews;
+            }
+            UniqueCounter users = uniqueVisitors.get(url);
+            if (users == null) uniqueVisitors.put(url, users = uniqueCounters.get());
+            users.add(event.userId());
+            long[] sources = sourceCounts.get(event.source());
+            if (sources == null) sourceCounts.put(event.source(), sources = new long[1]);
+            sources[0]++;
+        }
+    }
+
+    record ShardStats(int shard, long processed, int queueDepth, long producerStalls, long rejected) {}
+
+    // One single-writer partition of ShardedAnalyticsEngine. Queries are answered on the shard thread after it has
+    // drained every event enqueued before the query, so a caller always sees its own earlier events. Events are
+    // bucketed by the time they were produced, not consumed. An idle shard spins briefly, then parks until a
+    // producer or query sees `sleeping` and unparks it.
+    static class Shard implements Runnable {
+        private record Query(Duration window, long nowMillis, CompletableFuture<ShardResult> result) {}
+        private record ShardResult(List<PageStat> topPages, Map<String, Long> sourceDistribution) {}
+
+        private static final int DRAIN_BATCH = 1024;
+        private static final int IDLE_SPINS = 100;
+        private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+        final int index;
+        final MpscRing<Event> ring;
+        final LongAdder producerStalls = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        private final ConcurrentLinkedQueue<Query> queries = new ConcurrentLinkedQueue<>();
+        private final LocalBucket[] seconds = new LocalBucket[60];
+        private final LocalBucket[] minutes = new LocalBucket[60];
+        private final Supplier<UniqueCounter> uniqueCounters;
+        private final Thread thread;
+        private volatile long processed;
+        private volatile boolean running = true;
+        private volatile boolean sleeping;
+
+        Shard(int index, int ringCapacity, Supplier<UniqueCounter> uniqueCounters) {
+            this.index = index;
+            this.ring = new MpscRing<>(ringCapacity);
+            this.uniqueCounters = uniqueCounters;
+            this.thread = new Thread(this, "analytics-shard-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            int idle = 0;
+            while (running || ring.size() > 0) {
+                int drained = drain(DRAIN_BATCH);
+                Query query;
+                while ((query = queries.poll()) != null) {
+                    drainTo(ring.tail());
+                    try {
+                        query.result().complete(answer(query.window(), query.nowMillis()));
+                    } catch (RuntimeException e) {
+                        query.result().completeExceptionally(e);
+                    }
+                }
+                if (drained > 0) {
+                    idle = 0;
+                } else if (++idle > IDLE_SPINS) {
+                    // Producers read `sleeping` after claiming a slot, so either they unpark us or we see the claim.
+                    sleeping = true;
+                    if (ring.size() == 0 && queries.isEmpty() && running) LockSupport.parkNanos(MAX_PARK_NANOS);
+                    sleeping = false;
+                } else {
+                    Thread.onSpinWait();
+                }
+            }
+            Query query;
+            while ((query = queries.poll()) != null) query.result().completeExceptionally(closed());
+        }
+
+        boolean offer(Event event, long stampMillis) {
+            if (!ring.offer(event, stampMillis)) return false;
+            if (sleeping) LockSupport.unpark(thread);
+            return true;
+        }
+
+        CompletableFuture<ShardResult> query(Duration window, long nowMillis) {
+            Query query = new Query(window, nowMillis, new CompletableFuture<>());
+            queries.add(query);
+            LockSupport.unpark(thread);
+            // stop() may have raced past the shard's final sweep of the queue; whoever removes the query fails it.
+            if (!running && queries.remove(query)) query.result().completeExceptionally(closed());
+            return query.result();
+        }
+
+        ShardStats stats() {
+            return new ShardStats(index, processed, ring.size(), producerStalls.sum(), rejected.sum());
+        }
+
+        void stop() {
+            running = false;
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private int drain(int max) {
+            int n = 0;
+            Event event;
+            while (n < max && (event = ring.poll()) != null) {
+                apply(event, ring.polledStamp());
+                n++;
+            }
+            if (n > 0) processed += n;
+            return n;
+        }
+
+        // Waits out producers that have claimed a slot below `target` but not yet published into it.
+        private void drainTo(long target) {
+            long n = 0;
+            while (ring.head() < target) {
+                Event event = ring.poll();
+                if (event == null) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                apply(event, ring.polledStamp());
+                n++;
+            }
+            if (n > 0) processed += n;
+        }
+
+        private void apply(Event event, long stampMillis) {
+            LocalBucket second = current(seconds, Math.floorDiv(stampMillis, 1_000));
+            if (second != null) second.record(event, uniqueCounters);
+            LocalBucket minute = current(minutes, Math.floorDiv(stampMillis, 60_000));
+            if (minute != null) minute.record(event, uniqueCounters);
+        }
+
+        private static IllegalStateException closed() {
+            return new IllegalStateException("analytics engine is closed");
+        }
+
+        // Null when an event stamped before a rotation is drained after it: its interval is no longer in the ring.
+        private static LocalBucket current(LocalBucket[] ring, long epoch) {
+            int slot = Math.floorMod(epoch, ring.length);
+            LocalBucket bucket = ring[slot];
+            if (bucket != null && bucket.epoch > epoch) return null;
+            if (bucket == null || bucket.epoch < epoch) ring[slot] = bucket = new LocalBucket(epoch);
+            return bucket;
+        }
+
+        // URLs are partitioned by hash, so this shard's view of each of its pages is complete and its top pages
+        // can be merged with other shards' without touching unique counters again.
+        private ShardResult answer(Duration window, long now) {
+            long windowSeconds = Math.max(1, window.toSeconds());
+            boolean bySecond = windowSeconds <= seconds.length;
+            LocalBucket[] ring = bySecond ? seconds : minutes;
+            long epoch = Math.floorDiv(now, bySecond ? 1_000 : 60_000);
+            int units = bySecond ? (int) windowSeconds : (int) Math.min(minutes.length, (windowSeconds + 59) / 60);
+
+            List<LocalBucket> buckets = new ArrayList<>();
+            Set<String> candidates = new HashSet<>();
+            Map<String, Long> sourceDistribution = new HashMap<>();
+            for (int i = 0; i < units; i++) {
+                LocalBucket bucket = ring[Math.floorMod(epoch - i, ring.length)];
+                if (bucket == null || bucket.epoch != epoch - i) continue;
+                buckets.add(bucket);
+                candidates.addAll(bucket.candidates);
+                bucket.sourceCounts.forEach((source, count) -> sourceDistribution.merge(source, count[0], Long::sum));
+            }
+
+            Map<String, Long> views = new HashMap<>();
+            for (String url : candidates) {
+                long total = 0;
+                for (LocalBucket bucket : buckets) {
+                    long[] count = bucket.pageViews.get(url);
+                    if (count != null) total += count[0];
+                }
+                views.put(url, total);
+            }
+
+            List<PageStat> topPages = views.entrySet().stream()
+                    .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                    .limit(AnalyticsEngine.TOP_PAGES)
+                    .map(e -> {
+                        UniqueCounter merged = uniqueCounters.get();
+                        for (LocalBucket bucket : buckets) {
+                            UniqueCounter users = bucket.uniqueVisitors.get(e.getKey());
+                            if (users != null) merged.merge(users);
+                        }
+                        return new PageStat(e.getKey(), e.getValue(), (int) merged.count());
+                    })
+                    .toList();
+            return new ShardResult(topPages, sourceDistribution);
+        }
     }
 
-    public static void main(String[] args) {
+    // Ingestion mode that partitions events by URL hash across single-writer shards, each fed by a bounded MPSC
+    // ring. Producers never touch shared maps; when a shard's ring is full, processEvent spins until there is room
+    // (counted as a producer stall) and tryProcessEvent drops the event (counted as rejected). Once closed, every
+    // call fails with IllegalStateException instead of queueing work no shard will ever pick up.
+    static class ShardedAnalyticsEngine implements AutoCloseable {
+        static final int DEFAULT_RING_CAPACITY = 1 << 16;
+
+        private final Shard[] shards;
+        private final LongSupplier clockMillis;
+        private volatile boolean closed;
+
+        ShardedAnalyticsEngine(int shardCount) {
+            this(shardCount, DEFAULT_RING_CAPACITY, System::currentTimeMillis,
+                    () -> new HyperLogLog(AnalyticsEngine.DEFAULT_HLL_PRECISION));
+        }
+
+        ShardedAnalyticsEngine(int shardCount, int ringCapacity, LongSupplier clockMillis, Supplier<UniqueCounter> uniqueCounters) {
+            this.clockMillis = clockMillis;
+            this.shards = new Shard[shardCount];
+            for (int i = 0; i < shardCount; i++) shards[i] = new Shard(i, ringCapacity, uniqueCounters);
+        }
+
+        void processEvent(Event event) {
+            ensureOpen();
+            Shard shard = shardFor(event.url());
+            long now = clockMillis.getAsLong();
+            if (shard.offer(event, now)) return;
+            shard.producerStalls.increment();
+            while (!shard.offer(event, now)) {
+                ensureOpen();
+                Thread.yield();
+            }
+        }
+
+        boolean tryProcessEvent(Event event) {
+            ensureOpen();
+            Shard shard = shardFor(event.url());
+            if (shard.offer(event, clockMillis.getAsLong())) return true;
+            shard.rejected.increment();
+            return false;
+        }
+
+        Dashboard getDashboard() {
+            return getDashboard(AnalyticsEngine.MAX_WINDOW);
+        }
+
+        Dashboard getDashboard(Duration window) {
+            ensureOpen();
+            long now = clockMillis.getAsLong();
+            List<CompletableFuture<Shard.ShardResult>> results = new ArrayList<>();
+            for (Shard shard : shards) results.add(shard.query(window, now));
+
+            List<PageStat> candidates = new ArrayList<>();
+            Map<String, Long> sourceDistribution = new HashMap<>();
+            for (CompletableFuture<Shard.ShardResult> result : results) {
+                Shard.ShardResult partial;
+                try {
+                    partial = result.join();
+                } catch (CompletionException e) {
+                    throw e.getCause() instanceof RuntimeException re ? re : e;
+                }
+                candidates.addAll(partial.topPages());
+                partial.sourceDistribution().forEach((source, count) -> sourceDistribution.merge(source, count, Long::sum));
+            }
+            candidates.sort(Comparator.comparingLong(PageStat::views).reversed());
+            return new Dashboard(List.copyOf(candidates.subList(0, Math.min(AnalyticsEngine.TOP_PAGES, candidates.size()))),
+                    sourceDistribution);
+        }
+
+        List<ShardStats> getIngestionStats() {
+            List<ShardStats> stats = new ArrayList<>(shards.length);
+            for (Shard shard : shards) stats.add(shard.stats());
+            return stats;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            for (Shard shard : shards) shard.stop();
+        }
+
+        private void ensureOpen() {
+            if (closed) throw new IllegalStateException("analytics engine is closed");
+        }
+
+        private Shard shardFor(String url) {
+            int h = url.hashCode();
+            return shards[Math.floorMod(h ^ (h >>> 16), shards.length)];
+        }
+    }
+
+    static void runUniqueCounterBenchmark() {
+        System.out.printf("%-12s %-8s %14s %8s %12s %10s%n", "distinct", "counter", "estimate", "error", "memory", "ms");
+        for (long distinct : new long[] {1_000_000, 10_000_000, 100_000_000}) {
+            for (int precision : new int[] {12, 14}) {
+                HyperLogLog hll = new HyperLogLog(precision);
+                long start = System.nanoTime();
+                for (long i = 0; i < distinct; i++) hll.add("user_" + i);
+                long elapsed = System.nanoTime() - start;
+                long estimate = hll.count();
+                System.out.printf("%-12d %-8s %14d %7.2f%% %11dB %10d%n", distinct, "hll-p" + precision, estimate,
+                        100.0 * Math.abs(estimate - distinct) / distinct, hll.memoryBytes(), elapsed / 1_000_000);
+            }
+        }
+
+        // The exact set is only measured at 1M: at 10M+ it alone needs gigabytes of heap.
+        Runtime rt = Runtime.getRuntime();
+        System.gc();
+        long before = rt.totalMemory() - rt.freeMemory();
+        ExactUniqueCounter exact = new ExactUniqueCounter();
+        long start = System.nanoTime();
+        for (int i = 0; i < 1_000_000; i++) exact.add("user_" + i);
+        long elapsed = System.nanoTime() - start;
+        System.gc();
+        long used = rt.totalMemory() - rt.freeMemory() - before;
+        System.out.printf("%-12d %-8s %14d %7.2f%% %11dB %10d%n", 1_000_000, "exact", exact.count(), 0.0, used,
+                elapsed / 1_000_000);
+    }
+
+    // Long-tail traffic: a handful of hot pages plus a million URLs seen once or twice each.
+    static void runDashboardBenchmark() {
+        AnalyticsEngine engine = new AnalyticsEngine();
+        Random random = new Random(42);
+        long start = System.nanoTime();
+        for (int i = 0; i < 2_000_000; i++) {
+            String url = random.nextInt(4) == 0 ? "/hot/" + random.nextInt(20) : "/tail/" + random.nextInt(1_000_000);
+            engine.processEvent(new Event(url, "user_" + random.nextInt(100_000), "google"));
+        }
+        System.out.printf("ingest: %d ms for 2M events%n", (System.nanoTime() - start) / 1_000_000);
+
+        start = System.nanoTime();
+        Dashboard dashboard = engine.getDashboard();
+        System.out.printf("getDashboard: %.1f us computed%n", (System.nanoTime() - start) / 1_000.0);
+        int polls = 1_000;
+        start = System.nanoTime();
+        for (int i = 0; i < polls; i++) dashboard = engine.getDashboard();
+        System.out.printf("getDashboard: %.1f us/call within freshness%n", (System.nanoTime() - start) / 1_000.0 / polls);
+        System.out.println("top: " + dashboard.topPages().subList(0, 3));
+    }
+
+    static void runIngestionBenchmark() throws InterruptedException {
+        int producers = Math.max(2, Runtime.getRuntime().availableProcessors());
+        int perProducer = 1_000_000;
+        Random random = new Random(7);
+        Event[] events = new Event[1 << 16];
+        for (int i = 0; i < events.length; i++) {
+            String url = random.nextInt(4) == 0 ? "/hot/" + random.nextInt(20) : "/tail/" + random.nextInt(100_000);
+            events[i] = new Event(url, "user_" + random.nextInt(100_000), "source_" + random.nextInt(5));
+        }
+
+        AnalyticsEngine shared = new AnalyticsEngine();
+        double sharedRate = measureIngestion(producers, perProducer, events, shared::processEvent, shared::getDashboard);
+        System.out.printf("shared maps:   %.0f events/ms (%d producers)%n", sharedRate, producers);
+
+        try (ShardedAnalyticsEngine sharded = new ShardedAnalyticsEngine(producers)) {
+            double shardedRate = measureIngestion(producers, perProducer, events, sharded::processEvent, sharded::getDashboard);
+            System.out.printf("sharded rings: %.0f events/ms (%d shards)%n", shardedRate, producers);
+            sharded.getIngestionStats().forEach(System.out::println);
+        }
+    }
+
+    // The final dashboard read is timed too, so the sharded engine is charged for draining its rings.
+    private static double measureIngestion(int producers, int perProducer, Event[] events, Consumer<Event> sink,
+                                           Supplier<Dashboard> read) throws InterruptedException {
+        Thread[] workers = new Thread[producers];
+        long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            int offset = p * 7919;
+            workers[p] = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) sink.accept(events[(offset + i) & (events.length - 1)]);
+            });
+            workers[p].start();
+        }
+        for (Thread w : workers) w.join();
+        read.get();
+        long elapsed = System.nanoTime() - start;
+        return (double) producers * perProducer / (elapsed / 1_000_000.0);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length > 0 && args[0].equals("bench")) {
+            runUniqueCounterBenchmark();
+            runDashboardBenchmark();
+            runIngestionBenchmark();
+            return;
+        }
+
         AnalyticsEngine engine = new AnalyticsEngine();
         engine.processEvent(new Event("/article/breaking-news", "user_123", "google"));
         engine.processEvent(new Event("/article/breaking-news", "user_456", "facebook"));
@@ -49,5 +893,6 @@ public class Problem5RealTimeAnalyticsDashboard {
         Dashboard dash = engine.getDashboard();
         System.out.println("Top Pages: " + dash.topPages());
         System.out.println("Traffic Sources: " + dash.sourceDistribution());
+        System.out.println("Last 5 minutes: " + engine.getDashboard(Duration.ofMinutes(5)).topPages());
     }
 }
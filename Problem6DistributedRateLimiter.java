@@ -1,16 +1,232 @@
+import java.time.Duration;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 public class Problem6DistributedRateLimiter {
     record RateLimitDecision(boolean allowed, int remaining, long retryAfterSeconds, String message) {}
 
-    static class TokenBucket {
+    // Allowed decisions carry no per-request data beyond `remaining`, so the common ones are shared.
+    private static final RateLimitDecision[] ALLOWED = new RateLimitDecision[1024];
+
+    static {
+        for (int i = 0; i < ALLOWED.length; i++) ALLOWED[i] = new RateLimitDecision(true, i, 0, "Allowed");
+    }
+
+    static RateLimitDecision allowed(int remaining) {
+        return remaining < ALLOWED.length ? ALLOWED[remaining] : new RateLimitDecision(true, remaining, 0, "Allowed");
+    }
+
+    static RateLimitDecision denied(long retryAfterSeconds) {
+        return new RateLimitDecision(false, 0, retryAfterSeconds,
+                "Rate limit exceeded. Retry after " + retryAfterSeconds + " seconds.");
+    }
+
+    // A per-client limiter. Implementations are lock-free and safe to share between limiter nodes.
+    interface RateLimitAlgorithm {
+        RateLimitDecision consume();
+
+        // True when the state is indistinguishable from a freshly created limiter, so it can be dropped.
+        boolean isIdle();
+    }
+
+    // Lock-free token bucket. Whole tokens (low 22 bits) and the last refill time in microseconds since the
+    // bucket was created (high 42 bits, wrapping every ~51 days) share one AtomicLong updated by CAS. A refill only
+    // advances the timestamp by the time converted into whole tokens, so fractional progress is never lost.
+    static class TokenBucket implements RateLimitAlgorithm {
+        private static final int TOKEN_BITS = 22;
+        private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+        private static final long TIME_MASK = (1L << (64 - TOKEN_BITS)) - 1;
+
+        private final int maxTokens;
+        private final double microsPerToken;
+        private final LongSupplier nanoClock;
+        private final long originNanos;
+        private final AtomicLong state;
+
+        TokenBucket(int maxTokens, double refillRatePerSecond) {
+            this(maxTokens, refillRatePerSecond, System::nanoTime);
+        }
+
+        TokenBucket(int maxTokens, double refillRatePerSecond, LongSupplier nanoClock) {
+            if (maxTokens < 1 || maxTokens > TOKEN_MASK) throw new IllegalArgumentException("maxTokens out of range: " + maxTokens);
+            this.maxTokens = maxTokens;
+            this.microsPerToken = 1_000_000.0 / refillRatePerSecond;
+            this.nanoClock = nanoClock;
+            this.originNanos = nanoClock.getAsLong();
+            this.state = new AtomicLong(maxTokens);
+        }
+
+        @Override
+        public RateLimitDecision consume() {
+            while (true) {
+                long current = state.get();
+                long now = (nanoClock.getAsLong() - originNanos) / 1_000 & TIME_MASK;
+                long last = current >>> TOKEN_BITS;
+                long tokens = current & TOKEN_MASK;
+                long elapsed = (now - last) & TIME_MASK;
+                long added = (long) (elapsed / microsPerToken);
+                if (tokens + added >= maxTokens) {
+                    tokens = maxTokens;
+                    last = now;
+                } else if (added > 0) {
+                    tokens += added;
+                    last = (last + (long) (added * microsPerToken)) & TIME_MASK;
+                }
+
+                // Nothing was added, so there is no state change to publish.
+                if (tokens == 0) {
+                    long waitMicros = (long) Math.ceil(microsPerToken) - elapsed;
+                    return denied(Math.max(1, (waitMicros + 999_999) / 1_000_000));
+                }
+                if (state.compareAndSet(current, last << TOKEN_BITS | (tokens - 1))) return allowed((int) tokens - 1);
+            }
+        }
+
+        @Override
+        public boolean isIdle() {
+            long current = state.get();
+            long now = (nanoClock.getAsLong() - originNanos) / 1_000 & TIME_MASK;
+            long elapsed = (now - (current >>> TOKEN_BITS)) & TIME_MASK;
+            return (current & TOKEN_MASK) + (long) (elapsed / microsPerToken) >= maxTokens;
+        }
+    }
+
+    // Generic cell rate algorithm: the whole state is one theoretical arrival time (TAT). Each request pushes TAT
+    // forward by the emission interval; it is allowed while TAT stays within `limit` intervals of now. Equivalent to a
+    // token bucket of capacity `limit` refilling `limit` per window, but with a single long per client: share one
+    // Policy between clients and each instance is just that reference plus TAT.
+    static class Gcra implements RateLimitAlgorithm {
+        record Policy(long emissionNanos, long toleranceNanos, LongSupplier nanoClock, long originNanos) {
+            static Policy of(int limit, Duration window, LongSupplier nanoClock) {
+                if (limit < 1) throw new IllegalArgumentException("limit must be positive");
+                long emission = window.toNanos() / limit;
+                return new Policy(emission, emission * limit, nanoClock, nanoClock.getAsLong());
+            }
+
+            long now() {
+                return nanoClock.getAsLong() - originNanos;
+            }
+        }
+
+        private static final AtomicLongFieldUpdater<Gcra> TAT = AtomicLongFieldUpdater.newUpdater(Gcra.class, "tat");
+
+        private final Policy policy;
+        private volatile long tat;
+
+        Gcra(int limit, Duration window) {
+            this(Policy.of(limit, window, System::nanoTime));
+        }
+
+        Gcra(int limit, Duration window, LongSupplier nanoClock) {
+            this(Policy.of(limit, window, nanoClock));
+        }
+
+        Gcra(Policy policy) {
+            this.policy = policy;
+        }
+
+        @Override
+        public RateLimitDecision consume() {
+            long emission = policy.emissionNanos();
+            long tolerance = policy.toleranceNanos();
+            while (true) {
+                long current = tat;
+                long now = policy.now();
+                long next = Math.max(current, now) + emission;
+                long ahead = next - now;
+                if (ahead > tolerance) return denied(Math.max(1, (ahead - tolerance + 999_999_999) / 1_000_000_000));
+                if (TAT.compareAndSet(this, current, next)) return allowed((int) ((tolerance - ahead) / emission));
+            }
+        }
+
+        @Override
+        public boolean isIdle() {
+            return tat <= policy.now();
+        }
+    }
+
+    // Sliding-window counter: counts for the current and previous fixed window, with the previous one weighted by
+    // how much of it still overlaps the sliding window. Window index (32 bits) and both counts (16 bits each) share
+    // one AtomicLong, so unlike the token bucket a full burst cannot be repeated right after the window boundary.
+    static class SlidingWindowCounter implements RateLimitAlgorithm {
+        private static final long COUNT_MASK = 0xFFFF;
+
+        private final int limit;
+        private final long windowNanos;
+        private final LongSupplier nanoClock;
+        private final long originNanos;
+        private final AtomicLong state = new AtomicLong();
+
+        SlidingWindowCounter(int limit, Duration window) {
+            this(limit, window, System::nanoTime);
+        }
+
+        SlidingWindowCounter(int limit, Duration window, LongSupplier nanoClock) {
+            if (limit < 1 || limit > COUNT_MASK) throw new IllegalArgumentException("limit out of range: " + limit);
+            this.limit = limit;
+            this.windowNanos = window.toNanos();
+            this.nanoClock = nanoClock;
+            this.originNanos = nanoClock.getAsLong();
+        }
+
+        @Override
+        public RateLimitDecision consume() {
+            while (true) {
+                long current = state.get();
+                long now = nanoClock.getAsLong() - originNanos;
+                long index = now / windowNanos & 0xFFFFFFFFL;
+                long gap = (index - (current >>> 32)) & 0xFFFFFFFFL;
+                long prev = gap == 0 ? current >>> 16 & COUNT_MASK : gap == 1 ? current & COUNT_MASK : 0;
+                long curr = gap == 0 ? current & COUNT_MASK : 0;
+                long intoWindow = now % windowNanos;
+                double estimate = prev * (1 - (double) intoWindow / windowNanos) + curr;
+                if (estimate + 1 > limit) return denied(retryAfterSeconds(prev, curr, intoWindow));
+                if (state.compareAndSet(current, index << 32 | prev << 16 | (curr + 1))) {
+                    return allowed((int) (limit - estimate - 1));
+                }
+            }
+        }
+
+        @Override
+        public boolean isIdle() {
+            long current = state.get();
+            long gap = ((nanoClock.getAsLong() - originNanos) / windowNanos - (current >>> 32)) & 0xFFFFFFFFL;
+            return gap >= 2 || (current & (gap == 0 ? 0xFFFFFFFFL : COUNT_MASK)) == 0;
+        }
+
+        // Time until the weighted estimate leaves room for one more request.
+        private long retryAfterSeconds(long prev, long curr, long intoWindow) {
+            long waitNanos;
+            if (curr + 1 > limit) {
+                double needed = 1 - (double) (limit - 1) / curr;
+                waitNanos = windowNanos - intoWindow + (long) (needed * windowNanos);
+            } else {
+                double needed = 1 - (double) (limit - 1 - curr) / prev;
+                waitNanos = (long) (needed * windowNanos) - intoWindow;
+            }
+            return Math.max(1, (waitNanos + 999_999_999) / 1_000_000_000);
+        }
+    }
+
+    // The original monitor-based bucket, kept as the baseline for the contention benchmark.
+    static class SynchronizedTokenBucket {
         private final int maxTokens;
         private final double refillRatePerSecond;
         private double tokens;
         private long lastRefillMillis;
 
-        TokenBucket(int maxTokens, double refillRatePerSecond) {
+        SynchronizedTokenBucket(int maxTokens, double refillRatePerSecond) {
             this.maxTokens = maxTokens;
             this.refillRatePerSecond = refillRatePerSecond;
             this.tokens = maxTokens;
@@ -36,28 +252,219 @@ public class Problem6DistributedRateLimiter {
         }
     }
 
-    static class DistributedRateLimiter {
+    enum OverflowPolicy { DENY, SHARED_FALLBACK }
+
+    record LimiterStats(int trackedClients, long evictedTotal, double evictionsPerSecond, long overflowDecisions) {}
+
+    // Nodes that share a backing map also share its overflow fallback bucket and its idle sweep, so the fallback
+    // budget is cluster-wide like the client buckets and the table is scanned once per interval however many nodes
+    // use it. Eviction stats are per table; overflow counts stay per node.
+    static class DistributedRateLimiter implements AutoCloseable {
+        static final int DEFAULT_MAX_CLIENTS = 1_000_000;
+        static final Duration DEFAULT_SWEEP_INTERVAL = Duration.ofSeconds(1);
+        private static final double EVICTION_RATE_SMOOTHING = 0.3;
+
+        private static final RateLimitDecision TABLE_FULL =
+                new RateLimitDecision(false, 0, 1, "Rate limit exceeded. Too many active clients.");
+
+        // One daemon thread sweeps every table in the process; a table's sweep is cancelled with its last node.
+        private static final ScheduledThreadPoolExecutor SWEEPER = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "rate-limiter-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        private static final Map<Map<String, RateLimitAlgorithm>, SharedTable> TABLES = new IdentityHashMap<>();
+
+        static {
+            SWEEPER.setRemoveOnCancelPolicy(true);
+        }
+
         // Simulates shared distributed state (e.g., Redis) by allowing multiple limiter instances
         // to use the same backing map.
-        private final Map<String, TokenBucket> sharedBuckets;
-        private final int maxTokens;
-        private final int windowSeconds;
+        private final Map<String, RateLimitAlgorithm> sharedBuckets;
+        private final Supplier<RateLimitAlgorithm> newLimiter;
+        private final int maxClients;
+        private final OverflowPolicy overflowPolicy;
+        private final SharedTable table;
+        private final LongAdder overflowed = new LongAdder();
+        private boolean closed;
+
+        // State kept beside a backing map. The first node attached to a map picks its fallback limiter and sweep
+        // interval; nodes sharing a map are expected to agree on both.
+        private static final class SharedTable {
+            final Map<String, RateLimitAlgorithm> buckets;
+            final RateLimitAlgorithm fallbackBucket;
+            final LongAdder evicted = new LongAdder();
+            volatile double evictionsPerSecond;
+            long lastSweepNanos = System.nanoTime();
+            ScheduledFuture<?> sweep;
+            int nodes;
+
+            SharedTable(Map<String, RateLimitAlgorithm> buckets, RateLimitAlgorithm fallbackBucket) {
+                this.buckets = buckets;
+                this.fallbackBucket = fallbackBucket;
+            }
 
-        DistributedRateLimiter(Map<String, TokenBucket> sharedBuckets, int maxTokens, int windowSeconds) {
+            // Drops limiters that are back in their initial state (e.g. buckets refilled to full). A request racing
+            // with removal may consume from the dropped limiter, so a client gains at most one extra request.
+            int evictIdle() {
+                int removed = 0;
+                for (Map.Entry<String, RateLimitAlgorithm> e : buckets.entrySet()) {
+                    if (e.getValue().isIdle() && buckets.remove(e.getKey(), e.getValue())) removed++;
+                }
+                evicted.add(removed);
+                synchronized (this) {
+                    long now = System.nanoTime();
+                    double instant = removed / Math.max(1e-9, (now - lastSweepNanos) / 1e9);
+                    evictionsPerSecond = EVICTION_RATE_SMOOTHING * instant
+                            + (1 - EVICTION_RATE_SMOOTHING) * evictionsPerSecond;
+                    lastSweepNanos = now;
+                }
+                return removed;
+            }
+        }
+
+        DistributedRateLimiter(Map<String, RateLimitAlgorithm> sharedBuckets, int maxTokens, int windowSeconds) {
+            this(sharedBuckets, maxTokens, windowSeconds, DEFAULT_MAX_CLIENTS, OverflowPolicy.SHARED_FALLBACK,
+                    DEFAULT_SWEEP_INTERVAL);
+        }
+
+        DistributedRateLimiter(Map<String, RateLimitAlgorithm> sharedBuckets, int maxTokens, int windowSeconds, int maxClients,
+                               OverflowPolicy overflowPolicy, Duration sweepInterval) {
+            this(sharedBuckets, () -> new TokenBucket(maxTokens, (double) maxTokens / windowSeconds), maxClients,
+                    overflowPolicy, sweepInterval);
+        }
+
+        // Clients beyond maxClients are denied or share one fallback bucket, per overflowPolicy. The cap is checked
+        // before insertion, so concurrent first requests can overshoot it by at most the number of racing threads.
+        // newLimiter picks the algorithm, e.g. () -> new Gcra(policy) with one shared Gcra.Policy.
+        DistributedRateLimiter(Map<String, RateLimitAlgorithm> sharedBuckets, Supplier<RateLimitAlgorithm> newLimiter,
+                               int maxClients, OverflowPolicy overflowPolicy, Duration sweepInterval) {
             this.sharedBuckets = sharedBuckets;
-            this.maxTokens = maxTokens;
-            this.windowSeconds = windowSeconds;
+            this.newLimiter = newLimiter;
+            this.maxClients = maxClients;
+            this.overflowPolicy = overflowPolicy;
+            synchronized (TABLES) {
+                this.table = TABLES.computeIfAbsent(sharedBuckets, b -> new SharedTable(b, newLimiter.get()));
+                if (table.nodes++ == 0) {
+                    long intervalMillis = sweepInterval.toMillis();
+                    table.sweep = SWEEPER.scheduleWithFixedDelay(table::evictIdle, intervalMillis, intervalMillis,
+                            TimeUnit.MILLISECONDS);
+                }
+            }
         }
 
         RateLimitDecision checkRateLimit(String clientId) {
-            double refillRate = (double) maxTokens / windowSeconds;
-            TokenBucket bucket = sharedBuckets.computeIfAbsent(clientId, id -> new TokenBucket(maxTokens, refillRate));
+            RateLimitAlgorithm bucket = sharedBuckets.get(clientId);
+            if (bucket == null) {
+                if (sharedBuckets.size() >= maxClients) {
+                    overflowed.increment();
+                    return overflowPolicy == OverflowPolicy.DENY ? TABLE_FULL : table.fallbackBucket.consume();
+                }
+                bucket = sharedBuckets.computeIfAbsent(clientId, id -> newLimiter.get());
+            }
             return bucket.consume();
         }
+
+        // Sweeps the shared table now instead of waiting for the scheduled sweep.
+        int evictIdle() {
+            return table.evictIdle();
+        }
+
+        LimiterStats getStats() {
+            return new LimiterStats(sharedBuckets.size(), table.evicted.sum(), table.evictionsPerSecond,
+                    overflowed.sum());
+        }
+
+        @Override
+        public void close() {
+            synchronized (TABLES) {
+                if (closed) return;
+                closed = true;
+                if (--table.nodes == 0) {
+                    table.sweep.cancel(false);
+                    TABLES.remove(sharedBuckets);
+                }
+            }
+        }
     }
 
-    public static void main(String[] args) {
-        Map<String, TokenBucket> shared = new ConcurrentHashMap<>();
+    // All threads hammer a single client's bucket, the worst case for the gateway's hottest API key.
+    static void runHotClientBenchmark() throws InterruptedException {
+        int callsPerThread = 500_000;
+        System.out.printf("%-8s %20s %20s%n", "threads", "synchronized ops/ms", "lock-free ops/ms");
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            SynchronizedTokenBucket legacy = new SynchronizedTokenBucket(1_000, 100_000);
+            TokenBucket lockFree = new TokenBucket(1_000, 100_000);
+            System.out.printf("%-8d %20.0f %20.0f%n", threads,
+                    measureConsume(legacy::consume, threads, callsPerThread),
+                    measureConsume(lockFree::consume, threads, callsPerThread));
+        }
+    }
+
+    private static double measureConsume(Supplier<RateLimitDecision> consume, int threads, int callsPerThread)
+            throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < callsPerThread; i++) consume.get();
+            });
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread w : workers) w.join();
+        long elapsed = System.nanoTime() - begin;
+        return (double) threads * callsPerThread / (elapsed / 1_000_000.0);
+    }
+
+    // ns/op is a round-robin over many clients, so it includes the cache misses a real client table pays.
+    static void runAlgorithmBenchmark() {
+        int clients = 1_000_000;
+        int rounds = 10;
+        Map<String, Supplier<RateLimitAlgorithm>> algorithms = new LinkedHashMap<>();
+        algorithms.put("token-bucket", () -> new TokenBucket(100, 100 / 60.0));
+        Gcra.Policy gcra = Gcra.Policy.of(100, Duration.ofMinutes(1), System::nanoTime);
+        algorithms.put("gcra", () -> new Gcra(gcra));
+        algorithms.put("sliding-window", () -> new SlidingWindowCounter(100, Duration.ofMinutes(1)));
+
+        System.out.printf("%-16s %10s %14s%n", "algorithm", "ns/op", "bytes/client");
+        Runtime rt = Runtime.getRuntime();
+        for (Map.Entry<String, Supplier<RateLimitAlgorithm>> e : algorithms.entrySet()) {
+            System.gc();
+            long before = rt.totalMemory() - rt.freeMemory();
+            RateLimitAlgorithm[] limiters = new RateLimitAlgorithm[clients];
+            for (int i = 0; i < clients; i++) limiters[i] = e.getValue().get();
+            System.gc();
+            long bytes = rt.totalMemory() - rt.freeMemory() - before - (long) clients * 4;
+
+            long allowed = 0;
+            long start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (RateLimitAlgorithm limiter : limiters) {
+                    if (limiter.consume().allowed()) allowed++;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("%-16s %10.1f %14d   (allowed %d)%n", e.getKey(), (double) elapsed / ((long) clients * rounds),
+                    bytes / clients, allowed);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length > 0 && args[0].equals("bench")) {
+            runHotClientBenchmark();
+            runAlgorithmBenchmark();
+            return;
+        }
+
+        Map<String, RateLimitAlgorithm> shared = new ConcurrentHashMap<>();
         DistributedRateLimiter nodeA = new DistributedRateLimiter(shared, 5, 10);
         DistributedRateLimiter nodeB = new DistributedRateLimiter(shared, 5, 10);
 
@@ -67,5 +474,6 @@ public class Problem6DistributedRateLimiter {
         System.out.println(nodeB.checkRateLimit("abc123"));
         System.out.println(nodeA.checkRateLimit("abc123"));
         System.out.println(nodeB.checkRateLimit("abc123"));
+        System.out.println(nodeA.getStats());
     }
 }
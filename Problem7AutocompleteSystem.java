@@ -1,27 +1,88 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.BiConsumer;
 
 public class Problem7AutocompleteSystem {
+    record Completion(String query, int frequency) {}
+
     static class TrieNode {
         Map<Character, TrieNode> children = new HashMap<>();
         boolean isTerminal;
+        int frequency;
+        // Best completions in this subtree, highest frequency first; null for nodes below the cache depth.
+        Completion[] top;
+        int topSize;
     }
 
     static class Autocomplete {
+        static final int DEFAULT_CACHED_TOP_K = 10;
+        static final int DEFAULT_CACHE_DEPTH = 16;
+
         private final TrieNode root = new TrieNode();
         private final Map<String, Integer> queryFrequency = new HashMap<>();
+        private final int cachedTopK;
+        private final int cacheDepth;
+
+        Autocomplete() {
+            this(DEFAULT_CACHED_TOP_K, DEFAULT_CACHE_DEPTH);
+        }
+
+        // Nodes up to cacheDepth characters deep keep their best cachedTopK completions, so searches for those
+        // prefixes with topK <= cachedTopK never walk the subtree. Deeper prefixes fall back to a subtree walk;
+        // a negative cacheDepth turns caching off.
+        Autocomplete(int cachedTopK, int cacheDepth) {
+            if (cachedTopK < 1) throw new IllegalArgumentException("cachedTopK must be at least 1: " + cachedTopK);
+            this.cachedTopK = cachedTopK;
+            this.cacheDepth = cacheDepth;
+        }
 
         void addOrUpdateQuery(String query, int delta) {
-            queryFrequency.merge(query, delta, Integer::sum);
-            TrieNode node = root;
-            for (char c : query.toCharArray()) {
-                node = node.children.computeIfAbsent(c, k -> new TrieNode());
+            int frequency = queryFrequency.merge(query, delta, Integer::sum);
+            TrieNode[] path = new TrieNode[query.length() + 1];
+            path[0] = root;
+            for (int i = 0; i < query.length(); i++) {
+                path[i + 1] = path[i].children.computeIfAbsent(query.charAt(i), k -> new TrieNode());
             }
+            TrieNode node = path[query.length()];
             node.isTerminal = true;
+            node.frequency = frequency;
+
+            // One Completion is shared by every cache on the path.
+            Completion completion = new Completion(query, frequency);
+            for (int depth = 0; depth <= Math.min(query.length(), cacheDepth); depth++) {
+                updateTop(path[depth], completion, query, depth);
+            }
         }
 
         List<String> search(String prefix, int topK) {
@@ -31,47 +92,925 @@ public class Problem7AutocompleteSystem {
                 if (node == null) return List.of();
             }
 
-            PriorityQueue<String> minHeap = new PriorityQueue<>(Comparator.comparingInt(queryFrequency::get));
-            collect(prefix, node, minHeap, topK);
-
-            List<String> result = new ArrayList<>(minHeap);
-            result.sort((a, b) -> Integer.compare(queryFrequency.get(b), queryFrequency.get(a)));
+            List<String> result = new ArrayList<>();
+            if (node.top != null && topK <= cachedTopK) {
+                for (int i = 0; i < Math.min(topK, node.topSize); i++) result.add(node.top[i].query());
+                return result;
+            }
+            for (Completion c : collectTop(node, prefix, topK)) result.add(c.query());
             return result;
         }
 
+        // Read-only view of every query's frequency, e.g. for building a CompactTrie offline.
+        Map<String, Integer> frequencies() {
+            return Collections.unmodifiableMap(queryFrequency);
+        }
+
         List<String> suggestCorrections(String input, int maxDistance, int topK) {
-            return queryFrequency.keySet().stream()
-                    .filter(q -> levenshtein(input, q) <= maxDistance)
-                    .sorted((a, b) -> Integer.compare(queryFrequency.get(b), queryFrequency.get(a)))
-                    .limit(topK)
-                    .toList();
+            if (topK <= 0) return List.of();
+            int[] firstRow = new int[input.length() + 1];
+            for (int i = 0; i < firstRow.length; i++) firstRow[i] = i;
+            PriorityQueue<Completion> minHeap = new PriorityQueue<>(Comparator.comparingInt(Completion::frequency));
+            if (root.isTerminal && input.length() <= maxDistance) minHeap.offer(new Completion("", root.frequency));
+            List<int[]> rows = new ArrayList<>();
+            rows.add(firstRow);
+            fuzzyCollect(root, 0, rows, new StringBuilder(), input, maxDistance, topK, minHeap);
+
+            List<Completion> result = new ArrayList<>(minHeap);
+            result.sort(Comparator.comparingInt(Completion::frequency).reversed());
+            return result.stream().map(Completion::query).toList();
+        }
+
+        private void updateTop(TrieNode node, Completion completion, String query, int depth) {
+            if (node.top == null) node.top = new Completion[cachedTopK];
+            Completion[] top = node.top;
+            int i = 0;
+            while (i < node.topSize && !top[i].query().equals(query)) i++;
+            boolean decreased = false;
+            if (i < node.topSize) {
+                decreased = completion.frequency() < top[i].frequency();
+            } else if (node.topSize < top.length) {
+                node.topSize++;
+            } else if (completion.frequency() > top[i - 1].frequency()) {
+                i--;
+            } else {
+                return;
+            }
+            top[i] = completion;
+            for (; i > 0 && top[i - 1].frequency() < top[i].frequency(); i--) swap(top, i, i - 1);
+            for (; i + 1 < node.topSize && top[i + 1].frequency() > top[i].frequency(); i++) swap(top, i, i + 1);
+
+            // A full cache whose last entry just dropped may now rank below a completion it never saw.
+            if (decreased && i == top.length - 1) {
+                List<Completion> rebuilt = collectTop(node, query.substring(0, depth), cachedTopK);
+                node.topSize = rebuilt.size();
+                for (int j = 0; j < rebuilt.size(); j++) top[j] = rebuilt.get(j);
+            }
         }
 
-        private void collect(String prefix, TrieNode node, PriorityQueue<String> heap, int topK) {
-            if (node.isTerminal) {
-                heap.offer(prefix);
+        private static void swap(Completion[] a, int i, int j) {
+            Completion t = a[i];
+            a[i] = a[j];
+            a[j] = t;
+        }
+
+        // Subtree walk, highest frequency first.
+        private List<Completion> collectTop(TrieNode node, String prefix, int topK) {
+            PriorityQueue<Completion> minHeap = new PriorityQueue<>(Comparator.comparingInt(Completion::frequency));
+            collect(new StringBuilder(prefix), node, minHeap, topK);
+            List<Completion> result = new ArrayList<>(minHeap);
+            result.sort(Comparator.comparingInt(Completion::frequency).reversed());
+            return result;
+        }
+
+        private void collect(StringBuilder path, TrieNode node, PriorityQueue<Completion> heap, int topK) {
+            if (node.isTerminal && (heap.size() < topK || node.frequency > heap.peek().frequency())) {
+                heap.offer(new Completion(path.toString(), node.frequency));
                 if (heap.size() > topK) heap.poll();
             }
             for (Map.Entry<Character, TrieNode> e : node.children.entrySet()) {
-                collect(prefix + e.getKey(), e.getValue(), heap, topK);
+                path.append(e.getKey());
+                collect(path, e.getValue(), heap, topK);
+                path.setLength(path.length() - 1);
+            }
+        }
+
+        // Walks the trie carrying one Levenshtein DP row per level, the trie-shaped form of a Levenshtein automaton.
+        // A subtree is skipped once every cell of its row exceeds maxDistance, or once its cached best frequency
+        // cannot beat the current top-K. rows[d] is reused by every node at depth d.
+        private void fuzzyCollect(TrieNode node, int depth, List<int[]> rows, StringBuilder path, String input,
+                                  int maxDistance, int topK, PriorityQueue<Completion> heap) {
+            int[] row = rows.get(depth);
+            if (rows.size() == depth + 1) rows.add(new int[row.length]);
+            int[] next = rows.get(depth + 1);
+            for (Map.Entry<Character, TrieNode> e : node.children.entrySet()) {
+                TrieNode child = e.getValue();
+                if (heap.size() == topK && child.topSize > 0 && child.top[0].frequency() <= heap.peek().frequency()) continue;
+                char c = e.getKey();
+                next[0] = row[0] + 1;
+                int min = next[0];
+                for (int i = 1; i < row.length; i++) {
+                    int cost = input.charAt(i - 1) == c ? 0 : 1;
+                    next[i] = Math.min(Math.min(next[i - 1] + 1, row[i] + 1), row[i - 1] + cost);
+                    min = Math.min(min, next[i]);
+                }
+                if (min > maxDistance) continue;
+
+                path.append(c);
+                if (child.isTerminal && next[row.length - 1] <= maxDistance
+                        && (heap.size() < topK || child.frequency > heap.peek().frequency())) {
+                    heap.offer(new Completion(path.toString(), child.frequency));
+                    if (heap.size() > topK) heap.poll();
+                }
+                fuzzyCollect(child, depth + 1, rows, path, input, maxDistance, topK, heap);
+                path.setLength(path.length() - 1);
+            }
+        }
+    }
+
+    // Immutable path-compressed radix trie in flat primitive buffers: NODE_INTS ints per node (edge label slice,
+    // contiguous children sorted by first label char, inline frequency, parent, cached top-K slice), one char buffer
+    // of edge labels and one int buffer of cached top-K node ids. It is built offline and either kept on heap or
+    // written to a file and memory-mapped read-only, so a cold start is one mmap instead of a rebuild.
+    static class CompactTrie {
+        static final int MAGIC = 0x41435432;
+        static final int NOT_TERMINAL = Integer.MIN_VALUE;
+        private static final int HEADER_INTS = 6;
+        private static final int NODE_INTS = 8;
+        private static final int LABEL_START = 0;
+        private static final int LABEL_LENGTH = 1;
+        private static final int FIRST_CHILD = 2;
+        private static final int CHILD_COUNT = 3;
+        private static final int FREQUENCY = 4;
+        private static final int PARENT = 5;
+        private static final int TOP_START = 6;
+        private static final int TOP_COUNT = 7;
+
+        private final IntBuffer nodes;
+        private final CharBuffer labels;
+        private final IntBuffer top;
+        private final int nodeCount;
+        private final int cachedTopK;
+        private final int cacheDepth;
+
+        private CompactTrie(IntBuffer nodes, CharBuffer labels, IntBuffer top, int nodeCount, int cachedTopK,
+                            int cacheDepth) {
+            this.nodes = nodes;
+            this.labels = labels;
+            this.top = top;
+            this.nodeCount = nodeCount;
+            this.cachedTopK = cachedTopK;
+            this.cacheDepth = cacheDepth;
+        }
+
+        // Nodes are numbered breadth-first from the sorted keys, so every node's children are contiguous and have
+        // larger ids than the node itself, which lets the top-K pass run in reverse id order.
+        static CompactTrie build(Map<String, Integer> frequencies, int cachedTopK, int cacheDepth) {
+            String[] keys = frequencies.keySet().toArray(new String[0]);
+            Arrays.sort(keys);
+            int[] counts = new int[keys.length];
+            for (int i = 0; i < keys.length; i++) counts[i] = frequencies.get(keys[i]);
+            return build(keys, counts, cachedTopK, cacheDepth);
+        }
+
+        // keys must be sorted and distinct; frequencies[i] is the frequency of keys[i].
+        static CompactTrie build(String[] keys, int[] frequencies, int cachedTopK, int cacheDepth) {
+            int maxNodes = 2 * keys.length + 1;
+            int[] n = new int[maxNodes * NODE_INTS];
+            int[] lo = new int[maxNodes];
+            int[] hi = new int[maxNodes];
+            int[] depth = new int[maxNodes];
+            StringBuilder labelChars = new StringBuilder();
+            hi[0] = keys.length;
+            n[PARENT] = -1;
+            int count = 1;
+            for (int id = 0; id < count; id++) {
+                int a = lo[id];
+                int b = hi[id];
+                int d = depth[id];
+                int base = id * NODE_INTS;
+                n[base + FREQUENCY] = NOT_TERMINAL;
+                if (a < b && keys[a].length() == d) n[base + FREQUENCY] = frequencies[a++];
+                n[base + FIRST_CHILD] = count;
+                while (a < b) {
+                    char c = keys[a].charAt(d);
+                    int end = a + 1;
+                    while (end < b && keys[end].charAt(d) == c) end++;
+                    int lcp = d + 1;
+                    String first = keys[a];
+                    String last = keys[end - 1];
+                    while (lcp < first.length() && lcp < last.length() && first.charAt(lcp) == last.charAt(lcp)) lcp++;
+
+                    int child = count++;
+                    n[child * NODE_INTS + LABEL_START] = labelChars.length();
+                    n[child * NODE_INTS + LABEL_LENGTH] = lcp - d;
+                    n[child * NODE_INTS + PARENT] = id;
+                    labelChars.append(first, d, lcp);
+                    lo[child] = a;
+                    hi[child] = end;
+                    depth[child] = lcp;
+                    n[base + CHILD_COUNT]++;
+                    a = end;
+                }
+            }
+
+            int[][] best = new int[count][];
+            IntList topIds = new IntList();
+            for (int id = count - 1; id >= 0; id--) {
+                int base = id * NODE_INTS;
+                int[] ranked = new int[cachedTopK];
+                int size = 0;
+                if (n[base + FREQUENCY] != NOT_TERMINAL) size = insertRanked(n, ranked, size, id);
+                for (int c = n[base + FIRST_CHILD]; c < n[base + FIRST_CHILD] + n[base + CHILD_COUNT]; c++) {
+                    for (int t : best[c]) size = insertRanked(n, ranked, size, t);
+                    if (depth[c] > cacheDepth) best[c] = null;
+                }
+                best[id] = Arrays.copyOf(ranked, size);
+            }
+            for (int id = 0; id < count; id++) {
+                int base = id * NODE_INTS;
+                n[base + TOP_START] = depth[id] <= cacheDepth ? topIds.size() : -1;
+                n[base + TOP_COUNT] = depth[id] <= cacheDepth ? best[id].length : 0;
+                if (depth[id] <= cacheDepth) for (int t : best[id]) topIds.add(t);
+            }
+            return new CompactTrie(IntBuffer.wrap(Arrays.copyOf(n, count * NODE_INTS)),
+                    CharBuffer.wrap(labelChars.toString().toCharArray()), IntBuffer.wrap(topIds.toArray()), count, cachedTopK,
+                    cacheDepth);
+        }
+
+        // Inserts terminal `id` into `ranked` (highest frequency first, capacity ranked.length); returns the new size.
+        private static int insertRanked(int[] n, int[] ranked, int size, int id) {
+            int frequency = n[id * NODE_INTS + FREQUENCY];
+            if (size == ranked.length && (size == 0 || n[ranked[size - 1] * NODE_INTS + FREQUENCY] >= frequency)) return size;
+            int i = Math.min(size, ranked.length - 1);
+            while (i > 0 && n[ranked[i - 1] * NODE_INTS + FREQUENCY] < frequency) {
+                ranked[i] = ranked[i - 1];
+                i--;
+            }
+            ranked[i] = id;
+            return Math.min(size + 1, ranked.length);
+        }
+
+        static CompactTrie open(Path file) throws IOException {
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (buffer.getInt(0) != MAGIC) throw new IOException("Not a compact trie: " + file);
+            int nodeCount = buffer.getInt(4);
+            int labelLength = buffer.getInt(8);
+            int topLength = buffer.getInt(12);
+            int cachedTopK = buffer.getInt(16);
+            int cacheDepth = buffer.getInt(20);
+            int nodesAt = HEADER_INTS * 4;
+            int topAt = nodesAt + nodeCount * NODE_INTS * 4;
+            int labelsAt = topAt + topLength * 4;
+            return new CompactTrie(
+                    buffer.slice(nodesAt, nodeCount * NODE_INTS * 4).asIntBuffer(),
+                    buffer.slice(labelsAt, labelLength * 2).asCharBuffer(),
+                    buffer.slice(topAt, topLength * 4).asIntBuffer(),
+                    nodeCount, cachedTopK, cacheDepth);
+        }
+
+        void write(Path file) throws IOException {
+            if ((long) nodeCount * NODE_INTS * 4 + top.limit() * 4L + labels.limit() * 2L > Integer.MAX_VALUE) {
+                throw new IOException("Trie too large for a single mapped file");
+            }
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(nodeCount);
+                out.writeInt(labels.limit());
+                out.writeInt(top.limit());
+                out.writeInt(cachedTopK);
+                out.writeInt(cacheDepth);
+                for (int i = 0; i < nodeCount * NODE_INTS; i++) out.writeInt(nodes.get(i));
+                for (int i = 0; i < top.limit(); i++) out.writeInt(top.get(i));
+                for (int i = 0; i < labels.limit(); i++) out.writeChar(labels.get(i));
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        // Frequency of an exact query, or NOT_TERMINAL if it is not in the trie.
+        int frequency(String query) {
+            int node = descend(query, true);
+            return node < 0 ? NOT_TERMINAL : get(node, FREQUENCY);
+        }
+
+        List<Completion> search(String prefix, int topK) {
+            int node = descend(prefix, false);
+            if (node < 0 || topK <= 0) return List.of();
+            List<Completion> result = new ArrayList<>();
+            if (get(node, TOP_START) >= 0 && topK <= cachedTopK) {
+                int start = get(node, TOP_START);
+                for (int i = 0; i < Math.min(topK, get(node, TOP_COUNT)); i++) result.add(completion(top.get(start + i)));
+                return result;
+            }
+            PriorityQueue<Integer> minHeap = new PriorityQueue<>(Comparator.comparingInt(id -> get(id, FREQUENCY)));
+            IntList stack = new IntList();
+            stack.add(node);
+            while (stack.size() > 0) {
+                int id = stack.removeLast();
+                int frequency = get(id, FREQUENCY);
+                if (frequency != NOT_TERMINAL && (minHeap.size() < topK || frequency > get(minHeap.peek(), FREQUENCY))) {
+                    minHeap.offer(id);
+                    if (minHeap.size() > topK) minHeap.poll();
+                }
+                for (int c = get(id, FIRST_CHILD); c < get(id, FIRST_CHILD) + get(id, CHILD_COUNT); c++) stack.add(c);
+            }
+            while (!minHeap.isEmpty()) result.add(completion(minHeap.poll()));
+            Collections.reverse(result);
+            return result;
+        }
+
+        // Visits the queries in ascending order: a node's own query sorts before everything below it, and its
+        // children are stored sorted by the first char of their labels.
+        void forEach(BiConsumer<String, Integer> action) {
+            forEach(0, new StringBuilder(), action);
+        }
+
+        private void forEach(int node, StringBuilder path, BiConsumer<String, Integer> action) {
+            int mark = path.length();
+            int start = get(node, LABEL_START);
+            path.append(labels, start, start + get(node, LABEL_LENGTH));
+            if (get(node, FREQUENCY) != NOT_TERMINAL) action.accept(path.toString(), get(node, FREQUENCY));
+            for (int c = get(node, FIRST_CHILD); c < get(node, FIRST_CHILD) + get(node, CHILD_COUNT); c++) {
+                forEach(c, path, action);
+            }
+            path.setLength(mark);
+        }
+
+        int nodeCount() {
+            return nodeCount;
+        }
+
+        long sizeInBytes() {
+            return (long) nodeCount * NODE_INTS * 4 + top.limit() * 4L + labels.limit() * 2L;
+        }
+
+        // With exact=false the walk may stop inside an edge label; the node below it covers the same keys.
+        private int descend(String s, boolean exact) {
+            int node = 0;
+            int pos = 0;
+            while (pos < s.length()) {
+                int child = childStartingWith(node, s.charAt(pos));
+                if (child < 0) return -1;
+                int start = get(child, LABEL_START);
+                int length = get(child, LABEL_LENGTH);
+                if (exact && length > s.length() - pos) return -1;
+                int n = Math.min(length, s.length() - pos);
+                for (int i = 0; i < n; i++) {
+                    if (labels.get(start + i) != s.charAt(pos + i)) return -1;
+                }
+                pos += n;
+                node = child;
+            }
+            return node;
+        }
+
+        private int childStartingWith(int node, char c) {
+            int lo = get(node, FIRST_CHILD);
+            int hi = lo + get(node, CHILD_COUNT) - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                char first = labels.get(get(mid, LABEL_START));
+                if (first < c) lo = mid + 1;
+                else if (first > c) hi = mid - 1;
+                else return mid;
+            }
+            return -1;
+        }
+
+        private Completion completion(int id) {
+            return new Completion(queryOf(id), get(id, FREQUENCY));
+        }
+
+        private String queryOf(int id) {
+            IntList path = new IntList();
+            for (int n = id; n > 0; n = get(n, PARENT)) path.add(n);
+            StringBuilder sb = new StringBuilder();
+            for (int i = path.size() - 1; i >= 0; i--) {
+                int n = path.get(i);
+                int start = get(n, LABEL_START);
+                sb.append(labels, start, start + get(n, LABEL_LENGTH));
+            }
+            return sb.toString();
+        }
+
+        private int get(int node, int field) {
+            return nodes.get(node * NODE_INTS + field);
+        }
+    }
+
+    // CompactTrie plus a small sorted map of frequency deltas applied since it was built. A search takes the base's
+    // cached top-K for the prefix and merges in only the changed queries under it: increases can only promote a
+    // changed query, which is scored directly, and each decrease can push at most one base result out, so the base
+    // is asked for up to one extra result per decreased query, as far as its cache reaches. Once maxDeltas queries
+    // have changed, the deltas are frozen and folded into a fresh base in the background, which is then published
+    // through the volatile base; updates never wait for the rebuild. Searches share a read lock and see the frozen
+    // deltas until the new base replaces them; updates and the swap take the write lock.
+    static class CompactAutocomplete {
+        static final int DEFAULT_MAX_DELTAS = 4096;
+
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final int maxDeltas;
+        private volatile CompactTrie base;
+        private TreeMap<String, Integer> deltas = new TreeMap<>();
+        // Deltas being folded into the next base by the running compaction; empty otherwise.
+        private TreeMap<String, Integer> frozen = new TreeMap<>();
+        private CompletableFuture<Void> compaction = CompletableFuture.completedFuture(null);
+
+        CompactAutocomplete(CompactTrie base) {
+            this(base, DEFAULT_MAX_DELTAS);
+        }
+
+        CompactAutocomplete(CompactTrie base, int maxDeltas) {
+            this.base = base;
+            this.maxDeltas = maxDeltas;
+        }
+
+        static CompactAutocomplete open(Path file) throws IOException {
+            return new CompactAutocomplete(CompactTrie.open(file));
+        }
+
+        void addOrUpdateQuery(String query, int delta) {
+            lock.writeLock().lock();
+            try {
+                deltas.merge(query, delta, Integer::sum);
+                if (deltas.size() > maxDeltas && compaction.isDone()) compaction = startCompaction();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        List<String> search(String prefix, int topK) {
+            if (topK <= 0) return List.of();
+            lock.readLock().lock();
+            try {
+                CompactTrie base = this.base;
+                SortedMap<String, Integer> changed = changedUnder(prefix);
+                if (changed.isEmpty()) return base.search(prefix, topK).stream().map(Completion::query).toList();
+
+                int decreased = 0;
+                for (int delta : changed.values()) {
+                    if (delta < 0) decreased++;
+                }
+                int fetch = Math.max(topK, Math.min(topK + decreased, base.cachedTopK));
+                List<Completion> fetched = base.search(prefix, fetch);
+                List<Map.Entry<String, Integer>> ranked = merge(base, fetched, changed, topK);
+                // Unfetched base results score at most the last fetched one; if a decrease let one of them into the
+                // top-K, fetch enough to cover every decreased query (usually a subtree walk past the cache).
+                if (fetched.size() == fetch && fetch < topK + decreased && (ranked.size() < topK
+                        || ranked.get(topK - 1).getValue() < fetched.get(fetch - 1).frequency())) {
+                    ranked = merge(base, base.search(prefix, topK + decreased), changed, topK);
+                }
+                return ranked.stream().map(Map.Entry::getKey).toList();
+            } finally {
+                lock.readLock().unlock();
             }
         }
 
-        private int levenshtein(String a, String b) {
-            int[][] dp = new int[a.length() + 1][b.length() + 1];
-            for (int i = 0; i <= a.length(); i++) dp[i][0] = i;
-            for (int j = 0; j <= b.length(); j++) dp[0][j] = j;
-            for (int i = 1; i <= a.length(); i++) {
-                for (int j = 1; j <= b.length(); j++) {
-                    int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
-                    dp[i][j] = Math.min(Math.min(dp[i - 1][j] + 1, dp[i][j - 1] + 1), dp[i - 1][j - 1] + cost);
+        // Folds the current deltas into a new base in the background. At most one compaction runs at a time:
+        // while one is in flight its future is returned instead of starting another.
+        CompletableFuture<Void> compact() {
+            lock.writeLock().lock();
+            try {
+                if (compaction.isDone() && !deltas.isEmpty()) compaction = startCompaction();
+                return compaction;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        // Waits for a running compaction, folds in whatever deltas remain, then writes the base.
+        void save(Path file) throws IOException {
+            compact().join();
+            compact().join();
+            base.write(file);
+        }
+
+        // While a compaction runs a query can have deltas in both maps; they are summed into one view.
+        private SortedMap<String, Integer> changedUnder(String prefix) {
+            String end = prefix + Character.MAX_VALUE;
+            SortedMap<String, Integer> recent = deltas.subMap(prefix, end);
+            if (frozen.isEmpty()) return recent;
+            TreeMap<String, Integer> both = new TreeMap<>(frozen.subMap(prefix, end));
+            recent.forEach((query, delta) -> both.merge(query, delta, Integer::sum));
+            return both;
+        }
+
+        // Called with the write lock held.
+        private CompletableFuture<Void> startCompaction() {
+            CompactTrie from = base;
+            TreeMap<String, Integer> folding = deltas;
+            frozen = folding;
+            deltas = new TreeMap<>();
+            return CompletableFuture.runAsync(() -> {
+                CompactTrie next;
+                try {
+                    next = rebuild(from, folding);
+                } catch (Throwable t) {
+                    lock.writeLock().lock();
+                    try {
+                        deltas.forEach((query, delta) -> folding.merge(query, delta, Integer::sum));
+                        deltas = folding;
+                        frozen = new TreeMap<>();
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                    throw t;
+                }
+                lock.writeLock().lock();
+                try {
+                    base = next;
+                    frozen = new TreeMap<>();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            });
+        }
+
+        // Streams the base's queries, which it yields in key order, alongside the sorted deltas, so the new base is
+        // built from one sorted run without a hash map of the whole vocabulary or a re-sort.
+        private static CompactTrie rebuild(CompactTrie base, TreeMap<String, Integer> deltas) {
+            String[] changed = deltas.keySet().toArray(new String[0]);
+            int[] changes = deltas.values().stream().mapToInt(Integer::intValue).toArray();
+            List<String> keys = new ArrayList<>(base.nodeCount() + changed.length);
+            IntList frequencies = new IntList();
+            int[] next = {0};
+            base.forEach((query, frequency) -> {
+                int delta = 0;
+                for (; next[0] < changed.length; next[0]++) {
+                    int cmp = changed[next[0]].compareTo(query);
+                    if (cmp > 0) break;
+                    if (cmp == 0) {
+                        delta = changes[next[0]++];
+                        break;
+                    }
+                    keys.add(changed[next[0]]);
+                    frequencies.add(changes[next[0]]);
                 }
+                keys.add(query);
+                frequencies.add(frequency + delta);
+            });
+            for (int i = next[0]; i < changed.length; i++) {
+                keys.add(changed[i]);
+                frequencies.add(changes[i]);
             }
-            return dp[a.length()][b.length()];
+            return CompactTrie.build(keys.toArray(new String[0]), frequencies.toArray(), base.cachedTopK,
+                    base.cacheDepth);
+        }
+
+        private static List<Map.Entry<String, Integer>> merge(CompactTrie base, List<Completion> fetched,
+                                                              SortedMap<String, Integer> changed, int topK) {
+            Map<String, Integer> candidates = new HashMap<>();
+            for (Completion c : fetched) candidates.put(c.query(), c.frequency());
+            changed.forEach((query, delta) -> {
+                int baseFrequency = base.frequency(query);
+                candidates.put(query, (baseFrequency == CompactTrie.NOT_TERMINAL ? 0 : baseFrequency) + delta);
+            });
+            return candidates.entrySet().stream()
+                    .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
+                    .limit(topK)
+                    .toList();
         }
     }
 
-    public static void main(String[] args) {
+    // Lock-free reads over a persistent (path-copying) trie. Nodes are immutable and, like Autocomplete, those up to
+    // cacheDepth characters deep cache the top-K completions of their subtree. Writers only merge into a concurrent pending map. Every stalenessBound a publisher thread applies
+    // the pending updates by copying the root-to-leaf path of each changed query, re-ranking each copied node from
+    // its children's caches, and publishes the new root with one volatile write. Readers never block, never see a
+    // half-applied batch, and see every update within the bound.
+    static class ConcurrentAutocomplete implements AutoCloseable {
+        // top is null below the cache depth.
+        private record Node(char[] keys, Node[] children, Completion self, Completion[] top) {}
+
+        private static final Node EMPTY = new Node(new char[0], new Node[0], null, new Completion[0]);
+
+        private final ConcurrentHashMap<String, Integer> pending = new ConcurrentHashMap<>();
+        private final int cachedTopK;
+        private final int cacheDepth;
+        private final ScheduledExecutorService publisher;
+        private volatile Node root;
+
+        ConcurrentAutocomplete(Map<String, Integer> frequencies, int cachedTopK, Duration stalenessBound) {
+            this(frequencies, cachedTopK, Autocomplete.DEFAULT_CACHE_DEPTH, stalenessBound);
+        }
+
+        ConcurrentAutocomplete(Map<String, Integer> frequencies, int cachedTopK, int cacheDepth, Duration stalenessBound) {
+            this.cachedTopK = cachedTopK;
+            this.cacheDepth = cacheDepth;
+            String[] keys = frequencies.keySet().toArray(new String[0]);
+            Arrays.sort(keys);
+            this.root = build(keys, 0, keys.length, 0, frequencies);
+            this.publisher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "autocomplete-publisher");
+                t.setDaemon(true);
+                return t;
+            });
+            long intervalMillis = Math.max(1, stalenessBound.toMillis());
+            publisher.scheduleWithFixedDelay(this::publish, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        void addOrUpdateQuery(String query, int delta) {
+            pending.merge(query, delta, Integer::sum);
+        }
+
+        List<String> search(String prefix, int topK) {
+            Node node = root;
+            for (int i = 0; i < prefix.length(); i++) {
+                int child = Arrays.binarySearch(node.keys(), prefix.charAt(i));
+                if (child < 0) return List.of();
+                node = node.children()[child];
+            }
+
+            List<String> result = new ArrayList<>();
+            if (node.top() != null && topK <= cachedTopK) {
+                for (int i = 0; i < Math.min(topK, node.top().length); i++) result.add(node.top()[i].query());
+                return result;
+            }
+            for (Completion c : collectTop(node, topK)) result.add(c.query());
+            return result;
+        }
+
+        // Each key is removed atomically, so an update racing with the drain lands in this batch or the next one.
+        synchronized void publish() {
+            if (pending.isEmpty()) return;
+            Node r = root;
+            for (String query : pending.keySet()) {
+                Integer delta = pending.remove(query);
+                if (delta != null) r = update(r, query, 0, delta);
+            }
+            root = r;
+        }
+
+        @Override
+        public void close() {
+            publisher.shutdownNow();
+        }
+
+        private Node build(String[] keys, int lo, int hi, int depth, Map<String, Integer> frequencies) {
+            Completion self = null;
+            if (lo < hi && keys[lo].length() == depth) {
+                self = new Completion(keys[lo], frequencies.get(keys[lo]));
+                lo++;
+            }
+            List<Character> childKeys = new ArrayList<>();
+            List<Node> children = new ArrayList<>();
+            while (lo < hi) {
+                char c = keys[lo].charAt(depth);
+                int end = lo + 1;
+                while (end < hi && keys[end].charAt(depth) == c) end++;
+                childKeys.add(c);
+                children.add(build(keys, lo, end, depth + 1, frequencies));
+                lo = end;
+            }
+            char[] keyArray = new char[childKeys.size()];
+            for (int i = 0; i < keyArray.length; i++) keyArray[i] = childKeys.get(i);
+            return node(keyArray, children.toArray(new Node[0]), self, depth);
+        }
+
+        private Node update(Node node, String query, int depth, int delta) {
+            if (depth == query.length()) {
+                int frequency = node.self() == null ? delta : node.self().frequency() + delta;
+                return node(node.keys(), node.children(), new Completion(query, frequency), depth);
+            }
+            char c = query.charAt(depth);
+            int i = Arrays.binarySearch(node.keys(), c);
+            char[] keys = node.keys();
+            Node[] children;
+            if (i >= 0) {
+                children = node.children().clone();
+                children[i] = update(children[i], query, depth + 1, delta);
+            } else {
+                int at = -i - 1;
+                keys = new char[keys.length + 1];
+                System.arraycopy(node.keys(), 0, keys, 0, at);
+                System.arraycopy(node.keys(), at, keys, at + 1, node.keys().length - at);
+                keys[at] = c;
+                children = new Node[keys.length];
+                System.arraycopy(node.children(), 0, children, 0, at);
+                System.arraycopy(node.children(), at, children, at + 1, node.children().length - at);
+                children[at] = update(EMPTY, query, depth + 1, delta);
+            }
+            return node(keys, children, node.self(), depth);
+        }
+
+        // Children's caches are exact and sorted, so each one is read only while it can still place. Nodes at the
+        // cache depth rank their uncached children by walking them.
+        private Node node(char[] keys, Node[] children, Completion self, int depth) {
+            if (depth > cacheDepth) return new Node(keys, children, self, null);
+            Completion[] ranked = new Completion[cachedTopK];
+            int size = 0;
+            if (self != null) size = insertRanked(ranked, size, self);
+            for (Node child : children) {
+                for (Completion c : child.top() != null ? Arrays.asList(child.top()) : collectTop(child, cachedTopK)) {
+                    if (size == ranked.length && (size == 0 || c.frequency() <= ranked[size - 1].frequency())) break;
+                    size = insertRanked(ranked, size, c);
+                }
+            }
+            return new Node(keys, children, self, size == ranked.length ? ranked : Arrays.copyOf(ranked, size));
+        }
+
+        // Subtree walk, highest frequency first.
+        private static List<Completion> collectTop(Node node, int topK) {
+            PriorityQueue<Completion> minHeap = new PriorityQueue<>(Comparator.comparingInt(Completion::frequency));
+            List<Node> stack = new ArrayList<>(List.of(node));
+            while (!stack.isEmpty()) {
+                Node n = stack.remove(stack.size() - 1);
+                if (n.self() != null && topK > 0 && (minHeap.size() < topK || n.self().frequency() > minHeap.peek().frequency())) {
+                    minHeap.offer(n.self());
+                    if (minHeap.size() > topK) minHeap.poll();
+                }
+                stack.addAll(Arrays.asList(n.children()));
+            }
+            List<Completion> result = new ArrayList<>(minHeap);
+            result.sort(Comparator.comparingInt(Completion::frequency).reversed());
+            return result;
+        }
+
+        private static int insertRanked(Completion[] ranked, int size, Completion c) {
+            if (ranked.length == 0) return 0;
+            int i = Math.min(size, ranked.length - 1);
+            if (size == ranked.length && ranked[i].frequency() >= c.frequency()) return size;
+            while (i > 0 && ranked[i - 1].frequency() < c.frequency()) {
+                ranked[i] = ranked[i - 1];
+                i--;
+            }
+            ranked[i] = c;
+            return Math.min(size + 1, ranked.length);
+        }
+    }
+
+    // Growable int array, used as a stack and id list while building and walking CompactTrie.
+    static class IntList {
+        private int[] values = new int[16];
+        private int size;
+
+        void add(int v) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = v;
+        }
+
+        int get(int i) {
+            return values[i];
+        }
+
+        int removeLast() {
+            return values[--size];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    static List<String> syntheticQueries(int count, long seed) {
+        String[] words = {"java", "javascript", "python", "tutorial", "download", "features", "collections", "stream",
+                "spring", "boot", "kotlin", "maven", "gradle", "docker", "compose", "react", "native", "linux", "kernel"};
+        Random random = new Random(seed);
+        List<String> queries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            queries.add(words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)] + " " + i);
+        }
+        return queries;
+    }
+
+    static void runSearchBenchmark() {
+        List<String> queries = syntheticQueries(500_000, 11);
+        Random random = new Random(5);
+        String[] prefixes = {"j", "ja", "java", "p", "py", "s", "k", "react n"};
+        System.out.printf("%-12s %14s%n", "mode", "us/search");
+        for (int depth : new int[] {-1, Autocomplete.DEFAULT_CACHE_DEPTH}) {
+            Autocomplete ac = new Autocomplete(Autocomplete.DEFAULT_CACHED_TOP_K, depth);
+            for (String q : queries) ac.addOrUpdateQuery(q, 1 + random.nextInt(1_000));
+            int searches = depth < 0 ? 200 : 200_000;
+            long start = System.nanoTime();
+            for (int i = 0; i < searches; i++) ac.search(prefixes[i % prefixes.length], 10);
+            System.out.printf("%-12s %14.2f%n", depth < 0 ? "subtree walk" : "cached top-K",
+                    (System.nanoTime() - start) / 1_000.0 / searches);
+        }
+    }
+
+    static void runCompactBenchmark() throws IOException {
+        List<String> queries = syntheticQueries(500_000, 11);
+        Runtime rt = Runtime.getRuntime();
+        System.gc();
+        long before = rt.totalMemory() - rt.freeMemory();
+        Autocomplete ac = new Autocomplete();
+        for (String q : queries) ac.addOrUpdateQuery(q, 1 + (q.hashCode() & 1023));
+        System.gc();
+        System.out.printf("HashMap trie heap:  %,d bytes%n", rt.totalMemory() - rt.freeMemory() - before);
+
+        long start = System.nanoTime();
+        CompactTrie trie = CompactTrie.build(ac.frequencies(), Autocomplete.DEFAULT_CACHED_TOP_K, Autocomplete.DEFAULT_CACHE_DEPTH);
+        System.out.printf("compact trie:       %,d bytes, %,d nodes, built in %d ms%n", trie.sizeInBytes(), trie.nodeCount(),
+                (System.nanoTime() - start) / 1_000_000);
+
+        Path file = Files.createTempFile("autocomplete", ".trie");
+        trie.write(file);
+        start = System.nanoTime();
+        CompactAutocomplete mapped = CompactAutocomplete.open(file);
+        System.out.printf("mmap cold start:    %.2f ms, search(\"ja\") -> %s%n", (System.nanoTime() - start) / 1e6,
+                mapped.search("ja", 3));
+        Files.delete(file);
+    }
+
+    // Compares the trie walk against the previous full-vocabulary scan on misspelled queries.
+    static void runCorrectionBenchmark() {
+        List<String> queries = syntheticQueries(1_000_000, 13);
+        Autocomplete ac = new Autocomplete();
+        for (String q : queries) ac.addOrUpdateQuery(q, 1 + (q.hashCode() & 1023));
+        String[] typos = new String[4];
+        for (int i = 0; i < typos.length; i++) {
+            String q = queries.get(i * 250_000 + 17);
+            typos[i] = q.charAt(1) + "" + q.charAt(0) + q.substring(2);
+        }
+
+        long start = System.nanoTime();
+        for (String typo : typos) {
+            ac.frequencies().entrySet().stream()
+                    .filter(e -> levenshtein(typo, e.getKey()) <= 2)
+                    .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
+                    .limit(5)
+                    .toList();
+        }
+        System.out.printf("linear scan: %.1f ms/query%n", (System.nanoTime() - start) / 1e6 / typos.length);
+
+        int rounds = 50;
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (String typo : typos) ac.suggestCorrections(typo, 2, 5);
+        }
+        System.out.printf("trie walk:   %.2f ms/query -> %s%n", (System.nanoTime() - start) / 1e6 / (rounds * typos.length),
+                ac.suggestCorrections(typos[0], 2, 5));
+    }
+
+    // 32 readers search while one writer streams frequency updates; the baseline wraps Autocomplete in one lock.
+    static void runConcurrentReadBenchmark() throws InterruptedException {
+        List<String> queries = syntheticQueries(200_000, 17);
+        Autocomplete locked = new Autocomplete();
+        for (String q : queries) locked.addOrUpdateQuery(q, 1 + (q.hashCode() & 1023));
+        ConcurrentAutocomplete snapshots = new ConcurrentAutocomplete(locked.frequencies(), Autocomplete.DEFAULT_CACHED_TOP_K,
+                Duration.ofMillis(100));
+
+        Object lock = new Object();
+        double lockedRate = measureReads(32, queries,
+                prefix -> {
+                    synchronized (lock) {
+                        locked.search(prefix, 10);
+                    }
+                },
+                (query, delta) -> {
+                    synchronized (lock) {
+                        locked.addOrUpdateQuery(query, delta);
+                    }
+                });
+        double snapshotRate = measureReads(32, queries, prefix -> snapshots.search(prefix, 10), snapshots::addOrUpdateQuery);
+        snapshots.close();
+        System.out.printf("single lock:         %.0f searches/ms%n", lockedRate);
+        System.out.printf("snapshot publishing: %.0f searches/ms%n", snapshotRate);
+    }
+
+    private static double measureReads(int readers, List<String> queries, Consumer<String> search,
+                                       BiConsumer<String, Integer> update) throws InterruptedException {
+        long durationNanos = 2_000_000_000L;
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder searches = new LongAdder();
+        Thread writer = new Thread(() -> {
+            Random random = new Random(1);
+            while (running.get()) {
+                update.accept(queries.get(random.nextInt(queries.size())), random.nextInt(100));
+                LockSupport.parkNanos(10_000);
+            }
+        });
+        Thread[] workers = new Thread[readers];
+        for (int t = 0; t < readers; t++) {
+            int seed = t;
+            workers[t] = new Thread(() -> {
+                Random random = new Random(seed);
+                while (running.get()) {
+                    String q = queries.get(random.nextInt(queries.size()));
+                    search.accept(q.substring(0, 1 + random.nextInt(Math.min(6, q.length()))));
+                    searches.increment();
+                }
+            });
+        }
+        writer.start();
+        for (Thread w : workers) w.start();
+        Thread.sleep(durationNanos / 1_000_000);
+        running.set(false);
+        writer.join();
+        for (Thread w : workers) w.join();
+        return searches.sum() / (durationNanos / 1e6);
+    }
+
+    private static int levenshtein(String a, String b) {
+        int[][] dp = new int[a.length() + 1][b.length() + 1];
+        for (int i = 0; i <= a.length(); i++) dp[i][0] = i;
+        for (int j = 0; j <= b.length(); j++) dp[0][j] = j;
+        for (int i = 1; i <= a.length(); i++) {
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                dp[i][j] = Math.min(Math.min(dp[i - 1][j] + 1, dp[i][j - 1] + 1), dp[i - 1][j - 1] + cost);
+            }
+        }
+        return dp[a.length()][b.length()];
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && args[0].equals("bench")) {
+            runSearchBenchmark();
+            runCompactBenchmark();
+            runCorrectionBenchmark();
+            runConcurrentReadBenchmark();
+            return;
+        }
+
         Autocomplete ac = new Autocomplete();
         ac.addOrUpdateQuery("java tutorial", 1_234_567);
         ac.addOrUpdateQuery("javascript", 987_654);
@@ -1,5 +1,6 @@
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -14,6 +15,8 @@ public class Problem8ParkingLotOpenAddressing {
 
     static class ParkingLot {
         private final Spot[] spots;
+        // Set bits are spots that are EMPTY or DELETED; kept in sync by assign and exitVehicle.
+        private final BitSet free;
         private final int entranceIndex;
         private int occupiedCount;
         private int totalProbes;
@@ -21,38 +24,48 @@ public class Problem8ParkingLotOpenAddressing {
         private final Map<Integer, Integer> entriesByHour = new HashMap<>();
 
         ParkingLot(int capacity, int entranceIndex) {
+            if (entranceIndex < 0 || entranceIndex >= capacity) {
+                throw new IllegalArgumentException("entranceIndex must be in [0, " + capacity + "): " + entranceIndex);
+            }
             this.spots = new Spot[capacity];
             this.entranceIndex = entranceIndex;
             for (int i = 0; i < capacity; i++) spots[i] = new Spot();
+            this.free = new BitSet(capacity);
+            free.set(0, capacity);
         }
 
+        // Linear probing lands on the first free spot at or after the preferred one (wrapping), which the free-spot
+        // bitset finds a word at a time; probes still counts the occupied spots skipped.
         public synchronized String parkVehicle(String plate) {
             int preferred = hash(plate);
-            int probes = 0;
-            for (int i = 0; i < spots.length; i++) {
-                int idx = (preferred + i) % spots.length;
-                if (spots[idx].status == SpotStatus.EMPTY || spots[idx].status == SpotStatus.DELETED) {
-                    assign(idx, plate, probes);
-                    return "Assigned spot #" + idx + " (" + probes + " probes)";
-                }
-                probes++;
-            }
-            return "Parking lot full";
+            int idx = free.nextSetBit(preferred);
+            if (idx < 0) idx = free.nextSetBit(0);
+            if (idx < 0) return "Parking lot full";
+            int probes = Math.floorMod(idx - preferred, spots.length);
+            assign(idx, plate, probes);
+            return "Assigned spot #" + idx + " (" + probes + " probes)";
         }
 
         public synchronized int findNearestAvailableSpotToEntrance() {
-            int best = -1;
-            int bestDistance = Integer.MAX_VALUE;
-            for (int i = 0; i < spots.length; i++) {
-                if (spots[i].status == SpotStatus.EMPTY || spots[i].status == SpotStatus.DELETED) {
-                    int distance = circularDistance(entranceIndex, i, spots.length);
-                    if (distance < bestDistance) {
-                        bestDistance = distance;
-                        best = i;
-                    }
-                }
+            return findNearestAvailableSpot(entranceIndex);
+        }
+
+        // The nearest free spot is the first one walking clockwise or counter-clockwise from the entrance; ties go to
+        // the lower index, as in a full scan.
+        public synchronized int findNearestAvailableSpot(int entrance) {
+            if (entrance < 0 || entrance >= spots.length) {
+                throw new IllegalArgumentException("entrance must be in [0, " + spots.length + "): " + entrance);
             }
-            return best;
+            int forward = free.nextSetBit(entrance);
+            if (forward < 0) forward = free.nextSetBit(0);
+            if (forward < 0) return -1;
+            int backward = free.previousSetBit(entrance);
+            if (backward < 0) backward = free.previousSetBit(spots.length - 1);
+
+            int forwardDistance = circularDistance(entrance, forward, spots.length);
+            int backwardDistance = circularDistance(entrance, backward, spots.length);
+            if (forwardDistance != backwardDistance) return forwardDistance < backwardDistance ? forward : backward;
+            return Math.min(forward, backward);
         }
 
         public synchronized String exitVehicle(String plate, double hourlyRate) {
@@ -67,6 +80,7 @@ public class Problem8ParkingLotOpenAddressing {
             spot.status = SpotStatus.DELETED;
             spot.plate = null;
             spot.entryTime = null;
+            free.set(idx);
             occupiedCount--;
 
             return String.format("Spot #%d freed, Duration: %dh %dm, Fee: $%.2f",
@@ -89,6 +103,7 @@ public class Problem8ParkingLotOpenAddressing {
             spot.status = SpotStatus.OCCUPIED;
             spot.plate = plate;
             spot.entryTime = LocalDateTime.now();
+            free.clear(idx);
             occupiedCount++;
             parkOps++;
             totalProbes += probes;